@@ -0,0 +1,103 @@
+/*
+ * Copyright 2014 gitblit.com.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.gitblit.plugin.hipchat;
+
+/**
+ * An additive-increase/multiplicative-decrease concurrency limit.
+ *
+ * While requests complete faster than the latency threshold and the limit is
+ * actually being used, the limit grows by one.  A slow request, a failure or
+ * a rate limit response shrinks the limit by the backoff ratio.
+ *
+ * @author James Moger
+ *
+ */
+public class AdaptiveLimiter {
+
+	static final double BACKOFF_RATIO = 0.9;
+
+	final int minLimit;
+
+	final int maxLimit;
+
+	final long latencyThreshold;
+
+	private double limit;
+
+	private int inFlight;
+
+	AdaptiveLimiter(int initialLimit, int minLimit, int maxLimit, long latencyThreshold) {
+		this.minLimit = Math.max(1, minLimit);
+		this.maxLimit = Math.max(this.minLimit, maxLimit);
+		this.latencyThreshold = latencyThreshold;
+		this.limit = Math.min(this.maxLimit, Math.max(this.minLimit, initialLimit));
+	}
+
+	/**
+	 * Acquires a permit if the limit allows another request in flight.
+	 *
+	 * @return true if a permit was acquired
+	 */
+	public synchronized boolean tryAcquire() {
+		if (inFlight < (int) limit) {
+			inFlight++;
+			return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Returns an unused permit without adjusting the limit.
+	 */
+	public synchronized void cancel() {
+		inFlight--;
+	}
+
+	/**
+	 * Returns a permit for a request which HipChat answered.
+	 *
+	 * @param latency the round-trip time in milliseconds
+	 */
+	public synchronized void onSuccess(long latency) {
+		boolean saturated = inFlight * 2 >= (int) limit;
+		inFlight--;
+		if (latency > latencyThreshold) {
+			decrease();
+		} else if (saturated) {
+			limit = Math.min(maxLimit, limit + 1);
+		}
+	}
+
+	/**
+	 * Returns a permit for a request which failed or was rate limited.
+	 */
+	public synchronized void onDropped() {
+		inFlight--;
+		decrease();
+	}
+
+	private void decrease() {
+		limit = Math.max(minLimit, limit * BACKOFF_RATIO);
+	}
+
+	public synchronized int getLimit() {
+		return (int) limit;
+	}
+
+	public synchronized int getInFlight() {
+		return inFlight;
+	}
+}
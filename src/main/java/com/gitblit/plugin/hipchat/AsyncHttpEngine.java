@@ -0,0 +1,156 @@
+/*
+ * Copyright 2014 gitblit.com.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.gitblit.plugin.hipchat;
+
+import java.io.IOException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+import org.apache.http.HttpResponse;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.concurrent.FutureCallback;
+import org.apache.http.impl.nio.client.CloseableHttpAsyncClient;
+import org.apache.http.impl.nio.client.HttpAsyncClients;
+import org.apache.http.impl.nio.reactor.IOReactorConfig;
+
+/**
+ * Posts deliveries with a non-blocking NIO HttpAsyncClient.  Many requests
+ * may be in flight on a few I/O reactor threads and results are reported
+ * through callbacks, so the thread count does not grow when HipChat is slow.
+ *
+ * @author James Moger
+ *
+ */
+public class AsyncHttpEngine extends HttpEngine {
+
+	final CloseableHttpAsyncClient client;
+
+	AsyncHttpEngine(int ioThreads, int maxConnections) {
+		RequestConfig requestConfig = RequestConfig.custom()
+				.setConnectTimeout(CONNECTION_TIMEOUT)
+				.setSocketTimeout(SO_TIMEOUT)
+				.build();
+
+		IOReactorConfig reactorConfig = IOReactorConfig.custom()
+				.setIoThreadCount(ioThreads)
+				.build();
+
+		this.client = HttpAsyncClients.custom()
+				.setDefaultRequestConfig(requestConfig)
+				.setDefaultIOReactorConfig(reactorConfig)
+				.setMaxConnTotal(maxConnections)
+				.setMaxConnPerRoute(maxConnections)
+				.setUserAgent(getUserAgent())
+				.build();
+		this.client.start();
+	}
+
+	@Override
+	public void post(Delivery delivery) throws IOException {
+		Future<HttpResponse> future = client.execute(newPost(delivery), null);
+		try {
+			checkResponse(delivery, future.get());
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while posting to HipChat", e);
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof IOException) {
+				throw (IOException) e.getCause();
+			}
+			throw new IOException(e.getCause());
+		}
+	}
+
+	@Override
+	public int get(String url) throws IOException {
+		Future<HttpResponse> future = client.execute(new HttpGet(url), null);
+		try {
+			return future.get().getStatusLine().getStatusCode();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while contacting HipChat", e);
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof IOException) {
+				throw (IOException) e.getCause();
+			}
+			throw new IOException(e.getCause());
+		}
+	}
+
+	@Override
+	public void postAsync(final Delivery delivery, final DeliveryCallback callback) {
+		final long start = System.nanoTime();
+		HttpPost post;
+		try {
+			post = newPost(delivery);
+		} catch (RuntimeException e) {
+			// e.g. an invalid url, reported like any other failure
+			callback.failed(delivery, e, 0);
+			return;
+		}
+		FutureCallback<HttpResponse> futureCallback = new FutureCallback<HttpResponse>() {
+
+			@Override
+			public void completed(HttpResponse response) {
+				Exception cause;
+				try {
+					checkResponse(delivery, response);
+					cause = null;
+				} catch (Exception e) {
+					cause = e;
+				}
+				if (cause == null) {
+					callback.completed(delivery, elapsed(start));
+				} else {
+					callback.failed(delivery, cause, elapsed(start));
+				}
+			}
+
+			@Override
+			public void failed(Exception e) {
+				callback.failed(delivery, e, elapsed(start));
+			}
+
+			@Override
+			public void cancelled() {
+				callback.failed(delivery, new IOException("HipChat request cancelled"), elapsed(start));
+			}
+		};
+		try {
+			client.execute(post, futureCallback);
+		} catch (RuntimeException e) {
+			// e.g. the client was closed
+			callback.failed(delivery, e, elapsed(start));
+		}
+	}
+
+	@Override
+	public void close() {
+		try {
+			client.close();
+		} catch (IOException e) {
+			log.error("Failed to close the HipChat async client", e);
+		}
+	}
+
+	protected HttpPost newPost(Delivery delivery) {
+		HttpPost post = new HttpPost(delivery.url);
+		post.setEntity(getEntity(delivery));
+		return post;
+	}
+}
@@ -0,0 +1,141 @@
+/*
+ * Copyright 2014 gitblit.com.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.gitblit.plugin.hipchat;
+
+import java.io.IOException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.util.EntityUtils;
+
+/**
+ * Posts each delivery with a blocking HttpClient call.  Asynchronous
+ * deliveries occupy a thread of the task pool for the whole request.
+ * Connections are pooled and kept alive between requests.
+ *
+ * @author James Moger
+ *
+ */
+public class BlockingHttpEngine extends HttpEngine {
+
+	final ExecutorService taskPool;
+
+	final CloseableHttpClient client;
+
+	BlockingHttpEngine(ExecutorService taskPool, int maxConnections) {
+		this.taskPool = taskPool;
+
+		PoolingHttpClientConnectionManager connectionManager = new PoolingHttpClientConnectionManager();
+		connectionManager.setMaxTotal(maxConnections);
+		connectionManager.setDefaultMaxPerRoute(maxConnections);
+
+		RequestConfig requestConfig = RequestConfig.custom()
+				.setConnectTimeout(CONNECTION_TIMEOUT)
+				.setSocketTimeout(SO_TIMEOUT)
+				.build();
+
+		this.client = HttpClients.custom()
+				.setConnectionManager(connectionManager)
+				.setDefaultRequestConfig(requestConfig)
+				.setUserAgent(getUserAgent())
+				.build();
+	}
+
+	@Override
+	public void post(Delivery delivery) throws IOException {
+		HttpPost post = new HttpPost(delivery.url);
+		post.setEntity(getEntity(delivery));
+
+		CloseableHttpResponse response = client.execute(post);
+		try {
+			checkResponse(delivery, response);
+		} finally {
+			// release the connection back to the pool
+			EntityUtils.consumeQuietly(response.getEntity());
+			response.close();
+		}
+	}
+
+	@Override
+	public int get(String url) throws IOException {
+		CloseableHttpResponse response = client.execute(new HttpGet(url));
+		try {
+			return response.getStatusLine().getStatusCode();
+		} finally {
+			EntityUtils.consumeQuietly(response.getEntity());
+			response.close();
+		}
+	}
+
+	@Override
+	public void postAsync(Delivery delivery, DeliveryCallback callback) {
+		try {
+			taskPool.submit(new HipChatterTask(this, delivery, callback));
+		} catch (RejectedExecutionException e) {
+			callback.failed(delivery, e, 0);
+		}
+	}
+
+	@Override
+	public void close() {
+		// the task pool is owned by HipChatter
+		try {
+			client.close();
+		} catch (IOException e) {
+			log.error("Failed to close the HipChat client", e);
+		}
+	}
+
+	private static class HipChatterTask implements Callable<Boolean> {
+
+		final BlockingHttpEngine engine;
+		final Delivery delivery;
+		final DeliveryCallback callback;
+
+		public HipChatterTask(BlockingHttpEngine engine, Delivery delivery, DeliveryCallback callback) {
+			this.engine = engine;
+			this.delivery = delivery;
+			this.callback = callback;
+		}
+
+		@Override
+		public Boolean call() {
+			long start = System.nanoTime();
+			Exception cause;
+			try {
+				engine.post(delivery);
+				cause = null;
+			} catch (Exception e) {
+				// the callback must see every outcome, it returns the limiter permit
+				cause = e;
+			}
+			if (cause == null) {
+				callback.completed(delivery, elapsed(start));
+				return true;
+			}
+			callback.failed(delivery, cause, elapsed(start));
+			return false;
+		}
+	}
+}
@@ -0,0 +1,312 @@
+/*
+ * Copyright 2014 gitblit.com.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.gitblit.plugin.hipchat;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+import com.gitblit.models.RepositoryModel;
+import com.gitblit.utils.StringUtils;
+
+/**
+ * Detects bulk ticket imports, e.g. a migration from another tracker or a
+ * ticket replay, by the rate of new tickets per repository.
+ *
+ * A repository enters bulk mode when it creates threshold tickets within the
+ * window, or when bulk mode is switched on explicitly.  While a repository is
+ * in bulk mode its ticket events are only counted.  Automatic bulk mode ends
+ * once the repository has been quiet for a whole window, explicit bulk mode
+ * ends when it is switched off.
+ *
+ * @author James Moger
+ *
+ */
+public class BulkDetector {
+
+	/**
+	 * Switches bulk mode on for all repositories.
+	 */
+	public static final String ALL = "*";
+
+	final int threshold;
+
+	final long window;
+
+	final Map<String, ArrayDeque<Long>> rates;
+
+	final Map<String, Bulk> active;
+
+	final Set<String> manual;
+
+	final Set<String> excluded;
+
+	BulkDetector(int threshold, long window) {
+		this.threshold = threshold;
+		this.window = window;
+		this.rates = new TreeMap<String, ArrayDeque<Long>>();
+		this.active = new TreeMap<String, Bulk>();
+		this.manual = new HashSet<String>();
+		this.excluded = new HashSet<String>();
+	}
+
+	/**
+	 * Records a new ticket.
+	 *
+	 * @param repository
+	 * @return true if the repository is in bulk mode and the ticket must not
+	 *         be posted
+	 */
+	public synchronized boolean onNewTicket(RepositoryModel repository) {
+		String name = StringUtils.stripDotGit(repository.name);
+		long now = System.currentTimeMillis();
+		Bulk bulk = active.get(name);
+		if (bulk == null) {
+			if (!isManual(name) && !isRateExceeded(name, now)) {
+				return false;
+			}
+			bulk = new Bulk(repository, now);
+			active.put(name, bulk);
+			rates.remove(name);
+		}
+		bulk.created++;
+		bulk.pending++;
+		bulk.lastEvent = now;
+		return true;
+	}
+
+	/**
+	 * Records a ticket update.
+	 *
+	 * @param repository
+	 * @return true if the repository is in bulk mode and the update must not
+	 *         be posted
+	 */
+	public synchronized boolean onUpdateTicket(RepositoryModel repository) {
+		String name = StringUtils.stripDotGit(repository.name);
+		long now = System.currentTimeMillis();
+		Bulk bulk = active.get(name);
+		if (bulk == null) {
+			if (!isManual(name)) {
+				return false;
+			}
+			bulk = new Bulk(repository, now);
+			active.put(name, bulk);
+		}
+		bulk.updated++;
+		bulk.pending++;
+		bulk.lastEvent = now;
+		return true;
+	}
+
+	/**
+	 * Switches bulk mode on or off for a repository or for all repositories.
+	 *
+	 * Switching a single repository off while bulk mode is on for all
+	 * repositories excludes that repository.  Switching bulk mode off ends the
+	 * active imports of the affected repositories immediately.
+	 *
+	 * @param repository a repository name or {@link #ALL}
+	 * @param on
+	 * @return the imports which were ended by switching bulk mode off
+	 */
+	public synchronized List<Bulk> setManual(String repository, boolean on) {
+		String name = StringUtils.stripDotGit(repository);
+		List<Bulk> list = new ArrayList<Bulk>();
+		if (on) {
+			manual.add(name);
+			excluded.remove(name);
+			if (ALL.equals(name)) {
+				excluded.clear();
+			}
+			return list;
+		}
+
+		manual.remove(name);
+		if (ALL.equals(name)) {
+			manual.clear();
+			excluded.clear();
+		} else if (manual.contains(ALL)) {
+			excluded.add(name);
+		}
+
+		Iterator<Map.Entry<String, Bulk>> iterator = active.entrySet().iterator();
+		while (iterator.hasNext()) {
+			Map.Entry<String, Bulk> entry = iterator.next();
+			if (ALL.equals(name) || name.equals(entry.getKey())) {
+				Bulk bulk = entry.getValue();
+				bulk.finished = true;
+				list.add(bulk.copy());
+				iterator.remove();
+			}
+		}
+		return list;
+	}
+
+	/**
+	 * Returns the progress of the active bulk imports and ends the automatic
+	 * imports which have been quiet for a whole window.
+	 *
+	 * @return the active and the finished bulk imports with new events since
+	 *         the last call
+	 */
+	public synchronized List<Bulk> progress() {
+		long now = System.currentTimeMillis();
+		List<Bulk> list = new ArrayList<Bulk>();
+		Iterator<Map.Entry<String, Bulk>> iterator = active.entrySet().iterator();
+		while (iterator.hasNext()) {
+			Map.Entry<String, Bulk> entry = iterator.next();
+			Bulk bulk = entry.getValue();
+			if (!isManual(entry.getKey()) && now - bulk.lastEvent > window) {
+				bulk.finished = true;
+				iterator.remove();
+			}
+			if (bulk.pending > 0 || bulk.finished) {
+				list.add(bulk.copy());
+				bulk.pending = 0;
+			}
+		}
+
+		// forget the rates of quiet repositories
+		Iterator<ArrayDeque<Long>> rate = rates.values().iterator();
+		while (rate.hasNext()) {
+			ArrayDeque<Long> times = rate.next();
+			if (times.isEmpty() || now - times.peekLast() > window) {
+				rate.remove();
+			}
+		}
+		return list;
+	}
+
+	/**
+	 * Returns the active bulk imports.
+	 *
+	 * @return the active bulk imports
+	 */
+	public synchronized List<Bulk> getActive() {
+		List<Bulk> list = new ArrayList<Bulk>();
+		for (Bulk bulk : active.values()) {
+			list.add(bulk.copy());
+		}
+		return list;
+	}
+
+	/**
+	 * Returns the repositories for which bulk mode was switched on.
+	 *
+	 * @return the repositories or {@link #ALL}
+	 */
+	public synchronized List<String> getManual() {
+		return new ArrayList<String>(manual);
+	}
+
+	/**
+	 * Returns the repositories which were switched off while bulk mode is on
+	 * for all repositories.
+	 *
+	 * @return the excluded repositories
+	 */
+	public synchronized List<String> getExcluded() {
+		return new ArrayList<String>(excluded);
+	}
+
+	private boolean isManual(String name) {
+		if (excluded.contains(name)) {
+			return false;
+		}
+		return manual.contains(ALL) || manual.contains(name);
+	}
+
+	private boolean isRateExceeded(String name, long now) {
+		if (threshold <= 0) {
+			return false;
+		}
+		ArrayDeque<Long> times = rates.get(name);
+		if (times == null) {
+			times = new ArrayDeque<Long>();
+			rates.put(name, times);
+		}
+		times.offer(now);
+		while (!times.isEmpty() && now - times.peek() > window) {
+			times.poll();
+		}
+		if (times.size() > threshold) {
+			times.poll();
+		}
+		return times.size() >= threshold;
+	}
+
+	/**
+	 * The progress of a bulk import.
+	 */
+	public static class Bulk {
+
+		final RepositoryModel repository;
+
+		final long started;
+
+		long lastEvent;
+
+		int created;
+
+		int updated;
+
+		int pending;
+
+		boolean finished;
+
+		Bulk(RepositoryModel repository, long started) {
+			this.repository = repository;
+			this.started = started;
+			this.lastEvent = started;
+		}
+
+		Bulk copy() {
+			Bulk copy = new Bulk(repository, started);
+			copy.lastEvent = lastEvent;
+			copy.created = created;
+			copy.updated = updated;
+			copy.pending = pending;
+			copy.finished = finished;
+			return copy;
+		}
+
+		public RepositoryModel getRepository() {
+			return repository;
+		}
+
+		public long getStarted() {
+			return started;
+		}
+
+		public int getCreated() {
+			return created;
+		}
+
+		public int getUpdated() {
+			return updated;
+		}
+
+		public boolean isFinished() {
+			return finished;
+		}
+	}
+}
@@ -0,0 +1,126 @@
+/*
+ * Copyright 2014 gitblit.com.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.gitblit.plugin.hipchat;
+
+/**
+ * Tracks the health of a HipChat room.
+ *
+ * After a number of consecutive failures the breaker opens and requests
+ * are rejected without touching the network.  Once the open interval has
+ * elapsed a single probe request is allowed through (half-open); if it
+ * succeeds the breaker closes, otherwise it opens again.
+ *
+ * @author James Moger
+ *
+ */
+public class CircuitBreaker {
+
+	public static enum State {
+		closed, open, half_open
+	}
+
+	final String room;
+
+	final int failureThreshold;
+
+	final long openInterval;
+
+	private State state;
+
+	private int failures;
+
+	private long openedAt;
+
+	private long rejected;
+
+	CircuitBreaker(String room, int failureThreshold, long openInterval) {
+		this.room = room;
+		this.failureThreshold = Math.max(1, failureThreshold);
+		this.openInterval = openInterval;
+		this.state = State.closed;
+	}
+
+	/**
+	 * Returns true if a request may be sent to the room.  When an open breaker
+	 * has waited out the open interval this admits a single probe.
+	 *
+	 * @return true if the request may proceed
+	 */
+	public synchronized boolean allowRequest() {
+		switch (state) {
+		case closed:
+			return true;
+		case open:
+			if (System.currentTimeMillis() - openedAt >= openInterval) {
+				state = State.half_open;
+				return true;
+			}
+			rejected++;
+			return false;
+		default:
+			// a probe is already in flight
+			rejected++;
+			return false;
+		}
+	}
+
+	/**
+	 * Records a successful request.
+	 *
+	 * @return true if this success closed a previously open breaker
+	 */
+	public synchronized boolean onSuccess() {
+		boolean recovered = state != State.closed;
+		state = State.closed;
+		failures = 0;
+		return recovered;
+	}
+
+	/**
+	 * Records a failed request.
+	 *
+	 * @return true if this failure opened the breaker
+	 */
+	public synchronized boolean onFailure() {
+		failures++;
+		if (state == State.half_open || (state == State.closed && failures >= failureThreshold)) {
+			state = State.open;
+			openedAt = System.currentTimeMillis();
+			return true;
+		}
+		return false;
+	}
+
+	public String getRoom() {
+		return room;
+	}
+
+	public synchronized State getState() {
+		return state;
+	}
+
+	public synchronized int getFailures() {
+		return failures;
+	}
+
+	public synchronized long getOpenedAt() {
+		return openedAt;
+	}
+
+	public synchronized long getRejected() {
+		return rejected;
+	}
+}
@@ -0,0 +1,162 @@
+/*
+ * Copyright 2014 gitblit.com.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.gitblit.plugin.hipchat;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.util.Properties;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Elects the single node of a cluster which posts to HipChat.
+ *
+ * The nodes share a folder which holds a lease file naming the current
+ * leader and when its lease expires.  The lease file is only read and written
+ * while holding an exclusive lock on a lock file, so several JVMs may compete
+ * for the lease safely.  The leader renews its lease periodically; if it
+ * stops doing so another node takes over once the lease has expired.
+ *
+ * @author James Moger
+ *
+ */
+public class ClusterLease {
+
+	final Logger log = LoggerFactory.getLogger(getClass());
+
+	final File folder;
+
+	final File lockFile;
+
+	final File leaseFile;
+
+	final String node;
+
+	final long leaseTime;
+
+	private volatile boolean leader;
+
+	private volatile String holder;
+
+	private volatile long expires;
+
+	ClusterLease(File folder, String node, long leaseTime) {
+		this.folder = folder;
+		this.lockFile = new File(folder, "leader.lock");
+		this.leaseFile = new File(folder, "leader.lease");
+		this.node = node;
+		this.leaseTime = leaseTime;
+	}
+
+	/**
+	 * Acquires or renews the lease if it is free, expired or already held by
+	 * this node.
+	 *
+	 * @return true if this node is the leader
+	 */
+	public synchronized boolean renew() {
+		folder.mkdirs();
+		try (RandomAccessFile raf = new RandomAccessFile(lockFile, "rw");
+				FileChannel channel = raf.getChannel();
+				FileLock lock = channel.lock()) {
+			Properties lease = read();
+			long now = System.currentTimeMillis();
+			String current = lease.getProperty("node");
+			long until = Long.parseLong(lease.getProperty("expires", "0"));
+			if (current == null || node.equals(current) || until < now) {
+				until = now + leaseTime;
+				write(node, until);
+				current = node;
+			}
+			holder = current;
+			expires = until;
+			leader = node.equals(current);
+		} catch (IOException | NumberFormatException e) {
+			log.error("Failed to renew the HipChat cluster lease", e);
+			// keep leading only while the lease which was written is still valid
+			leader = leader && System.currentTimeMillis() < expires;
+		}
+		return leader;
+	}
+
+	/**
+	 * Gives up the lease so another node can take over without waiting for
+	 * it to expire.
+	 */
+	public synchronized void release() {
+		if (!leader) {
+			return;
+		}
+		try (RandomAccessFile raf = new RandomAccessFile(lockFile, "rw");
+				FileChannel channel = raf.getChannel();
+				FileLock lock = channel.lock()) {
+			if (node.equals(read().getProperty("node"))) {
+				leaseFile.delete();
+			}
+		} catch (IOException e) {
+			log.error("Failed to release the HipChat cluster lease", e);
+		}
+		leader = false;
+	}
+
+	public boolean isLeader() {
+		return leader;
+	}
+
+	public String getNode() {
+		return node;
+	}
+
+	/**
+	 * Returns the node which held the lease when it was last checked.
+	 *
+	 * @return the leader node
+	 */
+	public String getHolder() {
+		return holder;
+	}
+
+	public long getExpires() {
+		return expires;
+	}
+
+	private Properties read() throws IOException {
+		Properties lease = new Properties();
+		if (leaseFile.exists()) {
+			try (InputStream is = new FileInputStream(leaseFile)) {
+				lease.load(is);
+			}
+		}
+		return lease;
+	}
+
+	private void write(String node, long expires) throws IOException {
+		Properties lease = new Properties();
+		lease.setProperty("node", node);
+		lease.setProperty("expires", Long.toString(expires));
+		try (OutputStream os = new FileOutputStream(leaseFile)) {
+			lease.store(os, "HipChat cluster lease");
+		}
+	}
+}
@@ -0,0 +1,107 @@
+/*
+ * Copyright 2014 gitblit.com.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.gitblit.plugin.hipchat;
+
+import java.nio.charset.Charset;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Remembers a 64-bit hash of recently sent (room, message) pairs for a
+ * limited time so that replayed events are not posted twice.
+ *
+ * @author James Moger
+ *
+ */
+public class DedupWindow {
+
+	static final Charset UTF8 = Charset.forName("UTF-8");
+
+	static final long FNV_OFFSET = 0xcbf29ce484222325L;
+
+	static final long FNV_PRIME = 0x100000001b3L;
+
+	static final byte [] SEPARATOR = { 0 };
+
+	final long window;
+
+	final int maxEntries;
+
+	// insertion ordered, so the eldest entries are at the head
+	final LinkedHashMap<Long, Long> seen;
+
+	DedupWindow(long window, int maxEntries) {
+		this.window = window;
+		this.maxEntries = Math.max(1, maxEntries);
+		this.seen = new LinkedHashMap<Long, Long>();
+	}
+
+	/**
+	 * Records the message and returns true if the same message was already
+	 * recorded for the room within the window.
+	 *
+	 * @param room
+	 * @param message
+	 * @return true if this is a duplicate
+	 */
+	public synchronized boolean isDuplicate(String room, String message) {
+		long now = System.currentTimeMillis();
+		expire(now);
+
+		Long hash = hash(room, message);
+		if (seen.containsKey(hash)) {
+			return true;
+		}
+		seen.put(hash, now);
+		if (seen.size() > maxEntries) {
+			Iterator<Long> itr = seen.keySet().iterator();
+			itr.next();
+			itr.remove();
+		}
+		return false;
+	}
+
+	public synchronized int size() {
+		return seen.size();
+	}
+
+	private void expire(long now) {
+		Iterator<Map.Entry<Long, Long>> itr = seen.entrySet().iterator();
+		while (itr.hasNext()) {
+			if (now - itr.next().getValue() < window) {
+				break;
+			}
+			itr.remove();
+		}
+	}
+
+	static long hash(String room, String message) {
+		long hash = FNV_OFFSET;
+		hash = update(hash, room == null ? new byte[0] : room.getBytes(UTF8));
+		hash = update(hash, SEPARATOR);
+		hash = update(hash, message == null ? new byte[0] : message.getBytes(UTF8));
+		return hash;
+	}
+
+	private static long update(long hash, byte [] bytes) {
+		for (byte b : bytes) {
+			hash ^= (b & 0xff);
+			hash *= FNV_PRIME;
+		}
+		return hash;
+	}
+}
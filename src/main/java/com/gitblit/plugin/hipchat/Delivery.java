@@ -0,0 +1,144 @@
+/*
+ * Copyright 2014 gitblit.com.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.gitblit.plugin.hipchat;
+
+import java.nio.charset.Charset;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A payload which has been resolved to a room, an API url and a serialized
+ * JSON body and is ready to be posted by an {@link HttpEngine}.
+ *
+ * The body is kept as UTF-8 bytes which are shared by all rooms of a payload.
+ * The payload of a queued delivery is a copy without the message, so the
+ * message is only retained once, in the body.
+ *
+ * @author James Moger
+ *
+ */
+public class Delivery {
+
+	final Payload payload;
+
+	final String requested;
+
+	final String room;
+
+	final String url;
+
+	static final Charset UTF_8 = Charset.forName("UTF-8");
+
+	/**
+	 * The approximate number of bytes retained by a delivery in addition to
+	 * its body and url.
+	 */
+	static final int OVERHEAD = 128;
+
+	final byte [] body;
+
+	final List<Delivery> parts;
+
+	// fixed when queued, so the queue releases exactly what it counted
+	final int size;
+
+	Delivery(Payload payload, String requested, String room, String url, byte [] body) {
+		this(payload, requested, room, url, body, null);
+	}
+
+	Delivery(Payload payload, String requested, String room, String url, byte [] body, List<Delivery> parts) {
+		this.payload = payload;
+		this.requested = requested;
+		this.room = room;
+		this.url = url;
+		this.body = body;
+		this.parts = parts;
+		this.size = OVERHEAD + body.length + url.length();
+	}
+
+	public Payload getPayload() {
+		return payload;
+	}
+
+	/**
+	 * Returns the requested room, which is null for the default room.
+	 *
+	 * @return the requested room
+	 */
+	public String getRequestedRoom() {
+		return requested;
+	}
+
+	/**
+	 * Returns the resolved room.
+	 *
+	 * @return the room
+	 */
+	public String getRoom() {
+		return room;
+	}
+
+	/**
+	 * Returns the resolved room qualified by the stub endpoint of the
+	 * payload, if any, so the rooms of a stub endpoint are deduplicated and
+	 * summarized apart from the real rooms.
+	 *
+	 * @return the room key
+	 */
+	public String getKey() {
+		return getKey(payload.getEndpoint(), room);
+	}
+
+	static String getKey(String endpoint, String room) {
+		return endpoint == null ? room : endpoint + " " + room;
+	}
+
+	public String getUrl() {
+		return url;
+	}
+
+	public String getBody() {
+		return new String(body, UTF_8);
+	}
+
+	/**
+	 * Returns the deliveries which were coalesced into this delivery, or this
+	 * delivery if it was not coalesced.
+	 *
+	 * @return the original deliveries
+	 */
+	public List<Delivery> getParts() {
+		if (parts == null) {
+			return Collections.singletonList(this);
+		}
+		return parts;
+	}
+
+	/**
+	 * Returns the approximate number of bytes retained by this delivery while
+	 * it is queued.
+	 *
+	 * @return the size in bytes
+	 */
+	public int size() {
+		return size;
+	}
+
+	@Override
+	public String toString() {
+		return "Delivery to " + room;
+	}
+}
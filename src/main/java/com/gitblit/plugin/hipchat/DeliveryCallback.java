@@ -0,0 +1,42 @@
+/*
+ * Copyright 2014 gitblit.com.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.gitblit.plugin.hipchat;
+
+/**
+ * Receives the outcome of an asynchronous delivery.
+ *
+ * @author James Moger
+ *
+ */
+public interface DeliveryCallback {
+
+	/**
+	 * Called when HipChat accepted the notification.
+	 *
+	 * @param delivery
+	 * @param elapsed milliseconds spent on the request
+	 */
+	void completed(Delivery delivery, long elapsed);
+
+	/**
+	 * Called when the notification could not be delivered.
+	 *
+	 * @param delivery
+	 * @param cause
+	 * @param elapsed milliseconds spent on the request
+	 */
+	void failed(Delivery delivery, Exception cause, long elapsed);
+}
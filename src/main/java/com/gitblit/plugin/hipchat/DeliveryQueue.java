@@ -0,0 +1,325 @@
+/*
+ * Copyright 2014 gitblit.com.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.gitblit.plugin.hipchat;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.gitblit.plugin.hipchat.Payload.Priority;
+
+/**
+ * Holds deliveries which are waiting for a concurrency permit.
+ *
+ * Each priority has its own lane.  Lanes are served by smooth weighted
+ * round-robin so that urgent notifications are not stuck behind a bulk
+ * backlog while low priority notifications still make progress.
+ *
+ * Within a lane each repository has its own FIFO flow.  Flows are served by
+ * deficit round-robin: a flow sends as many deliveries as its weight before
+ * the next flow takes a turn, so one noisy repository cannot delay the
+ * notifications of every other repository.
+ *
+ * The queue is bounded by the number of deliveries and by the approximate
+ * number of bytes they retain, so memory use stays predictable during an
+ * outage.
+ *
+ * @author James Moger
+ *
+ */
+public class DeliveryQueue {
+
+	final Lane [] lanes;
+
+	final int [] weights;
+
+	final int [] credits;
+
+	final int maxCount;
+
+	final long maxBytes;
+
+	private int size;
+
+	private long bytes;
+
+	DeliveryQueue(int highWeight, int normalWeight, int lowWeight, int maxCount, long maxBytes) {
+		this.maxCount = maxCount <= 0 ? Integer.MAX_VALUE : maxCount;
+		this.maxBytes = maxBytes <= 0 ? Long.MAX_VALUE : maxBytes;
+		Priority [] priorities = Priority.values();
+		this.lanes = new Lane[priorities.length];
+		this.weights = new int[priorities.length];
+		this.credits = new int[priorities.length];
+		for (int i = 0; i < priorities.length; i++) {
+			lanes[i] = new Lane();
+		}
+		weights[Priority.high.ordinal()] = Math.max(1, highWeight);
+		weights[Priority.normal.ordinal()] = Math.max(1, normalWeight);
+		weights[Priority.low.ordinal()] = Math.max(1, lowWeight);
+	}
+
+	/**
+	 * Queues a delivery if it fits the count and byte budgets.
+	 *
+	 * @param delivery
+	 * @param weight the weight of the repository of the delivery, which is
+	 *        applied when its flow is created
+	 * @return false if the queue is full
+	 */
+	public synchronized boolean offer(Delivery delivery, int weight) {
+		int length = delivery.size();
+		if (size > 0 && (size >= maxCount || bytes + length > maxBytes)) {
+			return false;
+		}
+		lane(delivery).offer(delivery, weight);
+		size++;
+		bytes += length;
+		return true;
+	}
+
+	/**
+	 * Removes the oldest delivery of the longest flow of the lowest priority
+	 * lane which is not more urgent than the given priority.
+	 *
+	 * @param priority
+	 * @return the evicted delivery or null if there is none
+	 */
+	public synchronized Delivery evict(Priority priority) {
+		for (int i = lanes.length - 1; i >= priority.ordinal(); i--) {
+			Delivery delivery = lanes[i].evict();
+			if (delivery != null) {
+				size--;
+				bytes -= delivery.size();
+				return delivery;
+			}
+		}
+		return null;
+	}
+
+	public synchronized Delivery poll() {
+		if (size == 0) {
+			return null;
+		}
+
+		// smooth weighted round-robin over the non-empty lanes
+		int total = 0;
+		int selected = -1;
+		for (int i = 0; i < lanes.length; i++) {
+			if (lanes[i].isEmpty()) {
+				continue;
+			}
+			credits[i] += weights[i];
+			total += weights[i];
+			if (selected < 0 || credits[i] > credits[selected]) {
+				selected = i;
+			}
+		}
+		credits[selected] -= total;
+		size--;
+		Delivery delivery = lanes[selected].poll();
+		bytes -= delivery.size();
+		return delivery;
+	}
+
+	/**
+	 * Returns the queued deliveries to the same url and with the same
+	 * priority as the delivery, oldest first within each repository, without
+	 * removing them.
+	 *
+	 * @param delivery
+	 * @param max the maximum number of deliveries to return
+	 * @param scan the maximum number of queued deliveries to examine
+	 * @return the similar deliveries
+	 */
+	public synchronized List<Delivery> peekSimilar(Delivery delivery, int max, int scan) {
+		List<Delivery> list = new ArrayList<Delivery>();
+		for (Flow flow : lane(delivery).active) {
+			for (Delivery queued : flow.deliveries) {
+				if (list.size() >= max || scan-- <= 0) {
+					return list;
+				}
+				if (queued.url.equals(delivery.url)) {
+					list.add(queued);
+				}
+			}
+		}
+		return list;
+	}
+
+	/**
+	 * Removes a queued delivery.
+	 *
+	 * @param delivery
+	 * @return true if the delivery was still queued
+	 */
+	public synchronized boolean remove(Delivery delivery) {
+		if (lane(delivery).remove(delivery)) {
+			size--;
+			bytes -= delivery.size();
+			return true;
+		}
+		return false;
+	}
+
+	public synchronized int size() {
+		return size;
+	}
+
+	/**
+	 * Returns the number of deliveries which may still be queued before the
+	 * count budget is reached.  The byte budget may be reached sooner.
+	 *
+	 * @return the remaining count capacity
+	 */
+	public synchronized int remaining() {
+		return maxCount - size;
+	}
+
+	public synchronized int size(Priority priority) {
+		return lanes[priority.ordinal()].size;
+	}
+
+	/**
+	 * Returns the number of repositories with queued deliveries.
+	 *
+	 * @return the number of flows
+	 */
+	public synchronized int flows() {
+		int flows = 0;
+		for (Lane lane : lanes) {
+			flows += lane.flows.size();
+		}
+		return flows;
+	}
+
+	/**
+	 * Returns the approximate number of bytes retained by the queued
+	 * deliveries.
+	 *
+	 * @return the queued bytes
+	 */
+	public synchronized long bytes() {
+		return bytes;
+	}
+
+	private Lane lane(Delivery delivery) {
+		return lanes[delivery.payload.getPriority().ordinal()];
+	}
+
+	private static String key(Delivery delivery) {
+		String repository = delivery.payload.getRepository();
+		return repository == null ? "" : repository;
+	}
+
+	/**
+	 * The repository flows of one priority.
+	 */
+	private static class Lane {
+
+		final Map<String, Flow> flows = new HashMap<String, Flow>();
+
+		final ArrayDeque<Flow> active = new ArrayDeque<Flow>();
+
+		int size;
+
+		boolean isEmpty() {
+			return size == 0;
+		}
+
+		void offer(Delivery delivery, int weight) {
+			String key = key(delivery);
+			Flow flow = flows.get(key);
+			if (flow == null) {
+				flow = new Flow(key, weight);
+				flows.put(key, flow);
+				active.offer(flow);
+			}
+			flow.deliveries.offer(delivery);
+			size++;
+		}
+
+		Delivery poll() {
+			Flow flow = active.peek();
+			if (flow.deficit <= 0) {
+				flow.deficit = flow.weight;
+			}
+			Delivery delivery = flow.deliveries.poll();
+			flow.deficit--;
+			size--;
+			if (flow.deliveries.isEmpty()) {
+				active.poll();
+				flows.remove(flow.key);
+			} else if (flow.deficit <= 0) {
+				// the flow used its turn, move it to the back
+				active.offer(active.poll());
+			}
+			return delivery;
+		}
+
+		Delivery evict() {
+			Flow longest = null;
+			for (Flow flow : active) {
+				if (longest == null || flow.deliveries.size() > longest.deliveries.size()) {
+					longest = flow;
+				}
+			}
+			if (longest == null) {
+				return null;
+			}
+			Delivery delivery = longest.deliveries.poll();
+			size--;
+			if (longest.deliveries.isEmpty()) {
+				active.remove(longest);
+				flows.remove(longest.key);
+			}
+			return delivery;
+		}
+
+		boolean remove(Delivery delivery) {
+			Flow flow = flows.get(key(delivery));
+			if (flow == null || !flow.deliveries.remove(delivery)) {
+				return false;
+			}
+			size--;
+			if (flow.deliveries.isEmpty()) {
+				active.remove(flow);
+				flows.remove(flow.key);
+			}
+			return true;
+		}
+	}
+
+	/**
+	 * The queued deliveries of one repository.
+	 */
+	private static class Flow {
+
+		final String key;
+
+		final int weight;
+
+		final ArrayDeque<Delivery> deliveries = new ArrayDeque<Delivery>();
+
+		int deficit;
+
+		Flow(String key, int weight) {
+			this.key = key;
+			this.weight = Math.max(1, weight);
+		}
+	}
+}
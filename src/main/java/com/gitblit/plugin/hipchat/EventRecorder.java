@@ -0,0 +1,263 @@
+/*
+ * Copyright 2014 gitblit.com.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.gitblit.plugin.hipchat;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.gitblit.plugin.hipchat.ExecutorStrategy.NamedThreadFactory;
+import com.gitblit.utils.StringUtils;
+
+/**
+ * Records hook events to rolling binary files so that production traffic
+ * can be replayed against a stub endpoint.
+ *
+ * A new file is started when the current file exceeds the maximum size and
+ * the oldest files are deleted beyond the maximum number of files.  If
+ * anonymization is enabled repository, user and ref names are replaced by
+ * stable hashes.
+ *
+ * Events are anonymized and written by a single background writer, never on
+ * the hook thread.  If the writer falls behind by more than
+ * {@link #MAX_PENDING} events further events are dropped.
+ *
+ * @author James Moger
+ *
+ */
+public class EventRecorder {
+
+	static final int MAGIC = 0x48435231;
+
+	static final String EXTENSION = ".rec";
+
+	static final int MAX_PENDING = 1000;
+
+	final Logger log = LoggerFactory.getLogger(getClass());
+
+	final File folder;
+
+	final long maxSize;
+
+	final int maxFiles;
+
+	final boolean anonymize;
+
+	final ThreadPoolExecutor writer;
+
+	final AtomicLong dropped;
+
+	private DataOutputStream out;
+
+	private File file;
+
+	private boolean failed;
+
+	EventRecorder(File folder, long maxSize, int maxFiles, boolean anonymize) {
+		this.folder = folder;
+		this.maxSize = Math.max(1024, maxSize);
+		this.maxFiles = Math.max(1, maxFiles);
+		this.anonymize = anonymize;
+		this.writer = new ThreadPoolExecutor(1, 1, 60L, TimeUnit.SECONDS,
+				new ArrayBlockingQueue<Runnable>(MAX_PENDING), new NamedThreadFactory("HipChat-recorder"));
+		this.writer.allowCoreThreadTimeOut(true);
+		this.dropped = new AtomicLong();
+	}
+
+	/**
+	 * Hands an event to the background writer.  Failures are logged once
+	 * and never affect the hook.
+	 *
+	 * @param event
+	 */
+	public void record(final HookEvent event) {
+		try {
+			writer.execute(new Runnable() {
+				@Override
+				public void run() {
+					write(event);
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			if (dropped.getAndIncrement() == 0 && !writer.isShutdown()) {
+				log.warn("HipChat hook event recorder is falling behind, dropping events");
+			}
+		}
+	}
+
+	/**
+	 * Returns the number of events which were dropped because the writer
+	 * fell behind.
+	 *
+	 * @return the number of dropped events
+	 */
+	public long getDropped() {
+		return dropped.get();
+	}
+
+	/**
+	 * Writes the pending events and closes the recording.
+	 */
+	public void close() {
+		writer.shutdown();
+		try {
+			if (!writer.awaitTermination(5, TimeUnit.SECONDS)) {
+				log.warn("Timed out writing HipChat hook events to " + file);
+				writer.shutdownNow();
+				writer.awaitTermination(1, TimeUnit.SECONDS);
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		closeFile();
+	}
+
+	/**
+	 * Appends an event to the current recording on the writer thread.  The
+	 * file is flushed once no more events are pending.
+	 *
+	 * @param event
+	 */
+	private void write(HookEvent event) {
+		try {
+			if (out == null || out.size() >= maxSize) {
+				roll();
+			}
+			anonymize(event).write(out);
+			if (writer.getQueue().isEmpty()) {
+				out.flush();
+			}
+			failed = false;
+		} catch (IOException e) {
+			if (!failed) {
+				log.error("Failed to record HipChat hook event to " + file, e);
+				failed = true;
+			}
+			closeFile();
+		}
+	}
+
+	private void closeFile() {
+		if (out != null) {
+			try {
+				out.close();
+			} catch (IOException e) {
+				log.error("Failed to close " + file, e);
+			}
+			out = null;
+		}
+	}
+
+	/**
+	 * Returns the recordings, oldest first.
+	 *
+	 * @return the recording files
+	 */
+	public static List<File> getFiles(File folder) {
+		List<File> list = new ArrayList<File>();
+		File [] files = folder.listFiles();
+		if (files != null) {
+			Arrays.sort(files);
+			for (File file : files) {
+				if (file.isFile() && file.getName().endsWith(EXTENSION)) {
+					list.add(file);
+				}
+			}
+		}
+		return list;
+	}
+
+	/**
+	 * Reads the events of a recording.  A truncated last record, e.g. of a
+	 * recording which is still being written, is ignored.
+	 *
+	 * @param file
+	 * @return the events
+	 * @throws IOException
+	 */
+	public static List<HookEvent> read(File file) throws IOException {
+		List<HookEvent> events = new ArrayList<HookEvent>();
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+			if (in.readInt() != MAGIC) {
+				throw new IOException(file + " is not a HipChat recording");
+			}
+			while (true) {
+				try {
+					events.add(HookEvent.read(in));
+				} catch (EOFException e) {
+					break;
+				}
+			}
+		}
+		return events;
+	}
+
+	private void roll() throws IOException {
+		closeFile();
+		folder.mkdirs();
+		file = new File(folder, String.format("hooks-%013d%s", System.currentTimeMillis(), EXTENSION));
+		out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+		out.writeInt(MAGIC);
+
+		List<File> files = getFiles(folder);
+		for (int i = 0; i < files.size() - maxFiles; i++) {
+			files.get(i).delete();
+		}
+	}
+
+	private HookEvent anonymize(HookEvent event) {
+		if (!anonymize) {
+			return event;
+		}
+		HookEvent copy = new HookEvent(event.type, event.time, hash("repository-", event.repository),
+				hash("user-", event.user));
+		copy.duration = event.duration;
+		copy.ticket = event.ticket;
+		copy.kind = event.kind;
+		copy.textLength = event.textLength;
+		copy.commits = event.commits;
+		for (HookEvent.RefEvent ref : event.refs) {
+			// keep the namespace of the ref, e.g. refs/heads/
+			int slash = ref.ref.startsWith("refs/") ? ref.ref.indexOf('/', "refs/".length()) + 1 : 0;
+			copy.addRef(ref.ref.substring(0, slash) + hash("ref-", ref.ref.substring(slash)), ref.command, ref.commits);
+		}
+		return copy;
+	}
+
+	private static String hash(String prefix, String value) {
+		if (value == null) {
+			return "";
+		}
+		return prefix + StringUtils.getSHA1(value).substring(0, 10);
+	}
+}
@@ -0,0 +1,357 @@
+/*
+ * Copyright 2014 gitblit.com.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.gitblit.plugin.hipchat;
+
+import java.text.MessageFormat;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.gitblit.IStoredSettings;
+import com.gitblit.Keys;
+import com.gitblit.models.TicketModel;
+import com.gitblit.models.TicketModel.Change;
+import com.gitblit.models.TicketModel.Patchset;
+import com.gitblit.models.TicketModel.PatchsetType;
+import com.gitblit.models.TicketModel.Score;
+import com.gitblit.models.TicketModel.Status;
+import com.gitblit.utils.StringUtils;
+
+/**
+ * Drives recorded hook events through the rendering and delivery pipeline
+ * against a stub endpoint, at the recorded pace or accelerated.
+ *
+ * Recordings hold the shape of events, not their content, so the events are
+ * filled with synthetic commits and text of the recorded sizes and rendered
+ * by the same {@link PushMessages} and {@link TicketMessages} as the hooks.
+ * Ticket events are rendered on the ticket pool, just like the hooks do, and
+ * all messages are queued in the stub pipeline of the {@link HipChatter}.
+ *
+ * @author James Moger
+ *
+ */
+public class EventReplayer {
+
+	static final String [] LINES = {
+		"Lorem ipsum dolor sit amet, consectetur adipiscing elit.",
+		"- sed do eiusmod tempor incididunt ut **labore** et dolore",
+		"Ut enim ad minim veniam, see `quis.nostrud()` for details.",
+		"> duis aute irure dolor in reprehenderit",
+		"[excepteur](http://localhost/sint) occaecat cupidatat non proident"
+	};
+
+	final HipChatter hipChatter;
+
+	final IStoredSettings settings;
+
+	final String endpoint;
+
+	final LatencyProbe probe;
+
+	final String run;
+
+	final AtomicInteger fired;
+
+	final AtomicInteger skipped;
+
+	final ReplayMessages messages;
+
+	EventReplayer(HipChatter hipChatter, IStoredSettings settings, String endpoint, LatencyProbe probe) {
+		this.hipChatter = hipChatter;
+		this.settings = settings;
+		this.endpoint = endpoint;
+		this.probe = probe;
+		// seeds the synthetic commit ids of this run
+		this.run = Long.toString(System.currentTimeMillis(), 36);
+		this.fired = new AtomicInteger();
+		this.skipped = new AtomicInteger();
+		this.messages = new ReplayMessages();
+	}
+	/**
+	 * Replays the events, keeping the recorded gaps divided by the speed.
+	 *
+	 * @param events
+	 * @param speed 1 for the recorded pace, 0 for no pauses
+	 * @param deadline in nanoseconds
+	 * @return the number of fired events
+	 * @throws InterruptedException
+	 */
+	public int replay(List<HookEvent> events, double speed, long deadline) throws InterruptedException {
+		long start = System.nanoTime();
+		long first = events.isEmpty() ? 0 : events.get(0).time;
+		for (HookEvent event : events) {
+			if (speed > 0) {
+				long offset = (long) (TimeUnit.MILLISECONDS.toNanos(event.time - first) / speed);
+				long wait = Math.min(start + offset, deadline) - System.nanoTime();
+				if (wait > 0) {
+					TimeUnit.NANOSECONDS.sleep(wait);
+				}
+			}
+			if (System.nanoTime() >= deadline) {
+				break;
+			}
+			switch (event.type) {
+			case push:
+				for (HookEvent.RefEvent ref : event.refs) {
+					if (!probe.acquire(deadline)) {
+						return fired.get();
+					}
+					send(event, push(event, ref));
+				}
+				break;
+			default:
+				if (!probe.acquire(deadline)) {
+					return fired.get();
+				}
+				renderTicket(event);
+				break;
+			}
+			fired.incrementAndGet();
+		}
+		return fired.get();
+	}
+
+	/**
+	 * Returns the number of ticket events which were rejected by the busy
+	 * ticket pool.
+	 *
+	 * @return the number of skipped events
+	 */
+	public int getSkipped() {
+		return skipped.get();
+	}
+
+	protected Payload push(HookEvent event, HookEvent.RefEvent ref) {
+		boolean tag = ref.ref.startsWith("refs/tags/");
+		String type = tag ? "tag" : "branch";
+		String shortRef = ref.ref.replaceFirst("^refs/(heads|tags)/", "");
+		String repoUrl = messages.getUrl(event.repository, null, null);
+		switch (ref.command) {
+		case create:
+			return PushMessages.created(event.user, type, shortRef, messages.getUrl(event.repository, shortRef, null),
+					repoUrl, event.repository);
+		case delete:
+			return PushMessages.deleted(event.user, type, shortRef, repoUrl, event.repository);
+		default:
+			break;
+		}
+
+		String url = tag ? messages.getUrl(event.repository, null, shortRef) : messages.getUrl(event.repository, shortRef, null);
+		boolean listed = !tag && ref.command == HookEvent.Command.update;
+		int commits = listed ? ref.commits : 0;
+		String action = PushMessages.action(tag, ref.command == HookEvent.Command.update, commits);
+		String compareUrl = messages.getUrl(event.repository, id(ref.ref, -1), id(ref.ref, 0));
+		return PushMessages.updated(event.user, action, url, shortRef, repoUrl, event.repository,
+				listed ? rows(event.repository, event.user, ref.ref, commits) : null, commits, compareUrl);
+	}
+
+	protected void renderTicket(final HookEvent event) {
+		final long submitted = System.nanoTime();
+		final TicketModel ticket = ticket(event);
+		boolean accepted = hipChatter.renderAsync(new Runnable() {
+			@Override
+			public void run() {
+				RenderDeadline deadline = hipChatter.newRenderDeadline();
+				Change change = ticket.changes.get(ticket.changes.size() - 1);
+				Payload payload;
+				try {
+					if (event.type == HookEvent.Type.new_ticket) {
+						payload = messages.newTicket(ticket, deadline);
+					} else {
+						payload = messages.updateTicket(ticket, change, deadline);
+					}
+				} catch (RuntimeException e) {
+					probe.cancel();
+					throw e;
+				}
+				if (payload == null) {
+					// not a change the hook reports
+					probe.cancel();
+					return;
+				}
+				send(event, payload, submitted);
+			}
+		});
+		if (!accepted) {
+			skipped.incrementAndGet();
+			probe.cancel();
+		}
+	}
+
+	/**
+	 * Returns a ticket whose last change has the shape of the event.
+	 *
+	 * @param event
+	 * @return the ticket
+	 */
+	protected TicketModel ticket(HookEvent event) {
+		TicketModel ticket = new TicketModel();
+		ticket.repository = event.repository;
+		ticket.number = event.ticket;
+		ticket.title = LINES[(int) (event.ticket % LINES.length)];
+		ticket.createdBy = event.user;
+		ticket.status = Status.New;
+		ticket.changes = new ArrayList<Change>();
+
+		Change change = new Change(event.user);
+		if (event.type == HookEvent.Type.new_ticket) {
+			ticket.body = markdown(event.textLength);
+			change.setField(TicketModel.Field.title, ticket.title);
+			change.setField(TicketModel.Field.body, ticket.body);
+			ticket.changes.add(change);
+			return ticket;
+		}
+
+		switch (event.kind) {
+		case comment:
+			change.comment(markdown(event.textLength));
+			break;
+		case patchset:
+			change.patchset = patchset(event);
+			break;
+		case review:
+			Change proposal = new Change(event.user);
+			proposal.patchset = patchset(event);
+			ticket.changes.add(proposal);
+			change.review(proposal.patchset, Score.approved, false);
+			break;
+		case merge:
+			ticket.status = Status.Merged;
+			ticket.mergeTo = "master";
+			change.setField(TicketModel.Field.status, ticket.status);
+			change.setField(TicketModel.Field.mergeSha, id("ticket-" + event.ticket, 0));
+			break;
+		case status:
+			ticket.status = Status.Resolved;
+			change.setField(TicketModel.Field.status, ticket.status);
+			break;
+		default:
+			change.setField(TicketModel.Field.topic, LINES[0]);
+			break;
+		}
+		if (event.textLength > 0 && !change.hasComment()) {
+			change.comment(markdown(event.textLength));
+		}
+		ticket.changes.add(change);
+		return ticket;
+	}
+
+	private Patchset patchset(HookEvent event) {
+		Patchset patchset = new Patchset();
+		patchset.number = 1;
+		patchset.rev = 1;
+		patchset.type = PatchsetType.Proposal;
+		patchset.base = id("ticket-" + event.ticket, -1);
+		patchset.tip = id("ticket-" + event.ticket, 0);
+		patchset.added = event.commits;
+		return patchset;
+	}
+
+	/**
+	 * Returns the rows of the commit table for synthetic commits.
+	 *
+	 * @param repository
+	 * @param user
+	 * @param ref
+	 * @param commits
+	 * @return the rows
+	 */
+	protected List<String> rows(String repository, String user, String ref, int commits) {
+		int shortIdLen = settings.getInteger(Keys.web.shortCommitIdLength, 6);
+		List<String> rows = new ArrayList<String>();
+		for (int i = 0; i < Math.min(PushMessages.MAX_COMMITS, commits); i++) {
+			String id = id(ref, i);
+			rows.add(PushMessages.row(user.toLowerCase(), messages.getUrl(repository, null, id),
+					id.substring(0, shortIdLen), LINES[i % LINES.length]));
+		}
+		return rows;
+	}
+
+	protected void send(HookEvent event, Payload payload) {
+		send(event, payload, System.nanoTime());
+	}
+
+	protected void send(HookEvent event, Payload payload, long submitted) {
+		payload.setRepository(event.repository);
+		payload.endpoint(endpoint);
+		probe.track(payload, submitted);
+		hipChatter.sendAsync(payload);
+	}
+
+	/**
+	 * Returns a synthetic commit id, unique to the current event of this run.
+	 *
+	 * @param ref
+	 * @param index
+	 * @return a commit id
+	 */
+	protected String id(String ref, int index) {
+		return StringUtils.getSHA1(run + "-" + fired.get() + ref + index);
+	}
+
+	/**
+	 * Returns Markdown of about the given length.
+	 *
+	 * @param length
+	 * @return synthetic Markdown
+	 */
+	static String markdown(int length) {
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; sb.length() < length; i++) {
+			sb.append(LINES[i % LINES.length]).append('\n');
+		}
+		sb.setLength(Math.min(sb.length(), length));
+		return sb.toString();
+	}
+
+	/**
+	 * Renders recorded ticket events like the ticket hook.  Recorded users
+	 * and repositories may not exist, e.g. if they were anonymized, so names
+	 * are shown as recorded, bugtraq links are not resolved and patchsets
+	 * list synthetic commits.
+	 */
+	class ReplayMessages extends TicketMessages {
+
+		ReplayMessages() {
+			super(EventReplayer.this.hipChatter, EventReplayer.this.settings);
+		}
+
+		@Override
+		protected String getUrl(TicketModel ticket) {
+			String canonicalUrl = settings.getString(Keys.web.canonicalUrl, "https://localhost:8443");
+			return MessageFormat.format("{0}/tickets?r={1}&h={2}", canonicalUrl, ticket.repository,
+					Long.toString(ticket.number));
+		}
+
+		@Override
+		protected String getDisplayName(String username) {
+			return username;
+		}
+
+		@Override
+		protected String renderBugtraq(String value, String repository) {
+			return value;
+		}
+
+		@Override
+		protected void commits(StringBuilder sb, TicketModel ticket, Change change, String base, String tip) {
+			List<String> rows = rows(ticket.repository, change.author, "ticket-" + ticket.number, change.patchset.added);
+			PushMessages.commits(sb, rows, change.patchset.added, getUrl(ticket.repository, base, tip));
+			sb.append('\n');
+		}
+	}
+}
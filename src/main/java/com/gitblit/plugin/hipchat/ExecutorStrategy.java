@@ -0,0 +1,121 @@
+/*
+ * Copyright 2014 gitblit.com.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.gitblit.plugin.hipchat;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Creates the task pool used for asynchronous work.
+ *
+ * The plugin is compiled for Java 7 so virtual threads are looked up
+ * reflectively and the strategy falls back to a fixed platform pool when the
+ * running JVM does not provide them.
+ *
+ * @author James Moger
+ *
+ */
+public enum ExecutorStrategy {
+
+	cached, fixed, forkjoin, virtual;
+
+	static final Logger log = LoggerFactory.getLogger(ExecutorStrategy.class);
+
+	public static ExecutorStrategy fromString(String value) {
+		for (ExecutorStrategy strategy : values()) {
+			if (strategy.name().equalsIgnoreCase(value)) {
+				return strategy;
+			}
+		}
+		return cached;
+	}
+
+	/**
+	 * Returns true if this strategy can be used by the running JVM.
+	 *
+	 * @return true if the strategy is supported
+	 */
+	public boolean isSupported() {
+		if (virtual == this) {
+			return getVirtualFactory() != null;
+		}
+		return true;
+	}
+
+	/**
+	 * Creates an executor for this strategy, falling back to a fixed pool if
+	 * the strategy is not supported by the running JVM.
+	 *
+	 * @param poolSize the number of platform threads for fixed and forkjoin
+	 * @return an executor service
+	 */
+	public ExecutorService create(int poolSize) {
+		int threads = Math.max(1, poolSize);
+		switch (this) {
+		case fixed:
+			return Executors.newFixedThreadPool(threads, new NamedThreadFactory("HipChat"));
+		case forkjoin:
+			return new ForkJoinPool(threads);
+		case virtual:
+			Method factory = getVirtualFactory();
+			if (factory != null) {
+				try {
+					return (ExecutorService) factory.invoke(null);
+				} catch (Exception e) {
+					log.error("Failed to create a virtual thread executor", e);
+				}
+			}
+			log.warn("Virtual threads are not supported by Java {}, using a fixed pool of {} threads",
+					System.getProperty("java.version"), threads);
+			return fixed.create(threads);
+		default:
+			return Executors.newCachedThreadPool(new NamedThreadFactory("HipChat"));
+		}
+	}
+
+	private static Method getVirtualFactory() {
+		try {
+			return Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+		} catch (NoSuchMethodException e) {
+			return null;
+		}
+	}
+
+	static class NamedThreadFactory implements ThreadFactory {
+
+		final String prefix;
+
+		final AtomicInteger counter = new AtomicInteger();
+
+		NamedThreadFactory(String prefix) {
+			this.prefix = prefix;
+		}
+
+		@Override
+		public Thread newThread(Runnable r) {
+			Thread thread = new Thread(r, prefix + "-" + counter.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		}
+	}
+}
@@ -15,7 +15,23 @@
  */
 package com.gitblit.plugin.hipchat;
 
+import java.io.BufferedReader;
+import java.io.File;
 import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.kohsuke.args4j.Argument;
 import org.kohsuke.args4j.Option;
@@ -23,13 +39,21 @@ import org.kohsuke.args4j.Option;
 import ro.fortsoft.pf4j.Extension;
 
 import com.gitblit.manager.IRuntimeManager;
+import com.gitblit.plugin.hipchat.HipChatMetrics.RoomMetrics;
+import com.gitblit.plugin.hipchat.Payload.Color;
+import com.gitblit.plugin.hipchat.Payload.MessageFormat;
+import com.gitblit.plugin.hipchat.Payload.Priority;
 import com.gitblit.servlet.GitblitContext;
 import com.gitblit.transport.ssh.commands.CommandMetaData;
 import com.gitblit.transport.ssh.commands.DispatchCommand;
 import com.gitblit.transport.ssh.commands.SshCommand;
 import com.gitblit.transport.ssh.commands.UsageExample;
 import com.gitblit.transport.ssh.commands.UsageExamples;
+import com.gitblit.utils.FlipTable;
+import com.gitblit.utils.FlipTable.Borders;
 import com.gitblit.utils.StringUtils;
+import com.google.gson.Gson;
+import com.google.gson.JsonParseException;
 
 @Extension
 @CommandMetaData(name = "hipchat", description = "HipChat commands")
@@ -41,6 +65,13 @@ public class HipChatDispatcher extends DispatchCommand {
 		if (canAdmin) {
 			register(TestCommand.class);
 			register(MessageCommand.class);
+			register(StatsCommand.class);
+			register(BreakersCommand.class);
+			register(RoomsCommand.class);
+			register(BenchCommand.class);
+			register(BulkCommand.class);
+			register(ClusterCommand.class);
+			register(ReplayCommand.class);
 		}
 	}
 
@@ -77,7 +108,8 @@ public class HipChatDispatcher extends DispatchCommand {
 	@CommandMetaData(name = "send", aliases = { "post" }, description = "Asynchronously post a message")
 	@UsageExamples(examples = {
 			@UsageExample(syntax = "${cmd} -m \"'this is a test'\"", description = "Asynchronously posts a message to the default room"),
-			@UsageExample(syntax = "${cmd} myRoom -m \"'this is a test'\"", description = "Asynchronously posts a message to myRoom")
+			@UsageExample(syntax = "${cmd} myRoom -m \"'this is a test'\"", description = "Asynchronously posts a message to myRoom"),
+			@UsageExample(syntax = "cat messages.txt | ${cmd} myRoom -m -", description = "Asynchronously posts each line of stdin to myRoom")
 	})
 	public static class MessageCommand extends SshCommand {
 
@@ -87,21 +119,616 @@ public class HipChatDispatcher extends DispatchCommand {
 		@Option(name = "--message", aliases = {"-m" }, metaVar = "-|MESSAGE", required = true)
 		String message;
 
+		@Option(name = "--timeout", metaVar = "SECONDS", usage = "Maximum time to wait for the outcomes of a batch")
+		int timeout = 60;
+
 		/**
 		 * Post a message
 		 */
 		@Override
 		public void run() throws Failure {
-			Payload payload = Payload.text(message);
+			IRuntimeManager runtimeManager = GitblitContext.getManager(IRuntimeManager.class);
+			HipChatter.init(runtimeManager);
+
+			if ("-".equals(message)) {
+				sendBatch(HipChatter.instance());
+				return;
+			}
+
+			Payload payload = Payload.text(message).explicit();
 
 		    if (!StringUtils.isEmpty(room)) {
 		    	payload.room(room);
 		    }
 
+		    HipChatter.instance().sendAsync(payload);
+		}
+
+		/**
+		 * Reads one message per line from stdin and queues each message as
+		 * soon as it is read.  A line is either plain text or a JSON object
+		 * with a message and an optional room, color, format and notify flag.
+		 * After the last line the outcomes of the deliveries are awaited, so
+		 * the summary and the exit code tell what was actually posted.
+		 *
+		 * @param hipChatter
+		 * @throws Failure
+		 */
+		protected void sendBatch(HipChatter hipChatter) throws Failure {
+			Gson gson = new Gson();
+			int accepted = 0;
+			int rejected = 0;
+			int deliveries = 0;
+			int lineNumber = 0;
+			BatchOutcomes outcomes = new BatchOutcomes();
+			hipChatter.addListener(outcomes);
+			try {
+				try {
+					BufferedReader reader = new BufferedReader(new InputStreamReader(in, "UTF-8"));
+					String line;
+					while ((line = reader.readLine()) != null) {
+						lineNumber++;
+						if (line.trim().isEmpty()) {
+							continue;
+						}
+						try {
+							Payload payload = parse(gson, line).explicit();
+							outcomes.track(payload);
+							deliveries += hipChatter.sendAsync(payload);
+							accepted++;
+						} catch (IllegalArgumentException | JsonParseException e) {
+							rejected++;
+							stderr.println(String.format("line %d: %s", lineNumber, e.getMessage()));
+						}
+					}
+				} catch (IOException e) {
+					throw new Failure(1, "Failed to read messages from stdin", e);
+				}
+				outcomes.await(deliveries, System.nanoTime() + TimeUnit.SECONDS.toNanos(Math.max(0, timeout)));
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			} finally {
+				hipChatter.removeListener(outcomes);
+			}
+
+			int completed = outcomes.completed.get();
+			int failed = outcomes.getFailed();
+			int pending = Math.max(0, deliveries - completed - failed);
+			boolean forwarded = hipChatter.getCluster() != null && !hipChatter.getCluster().isLeader();
+			for (Map.Entry<String, AtomicInteger> reason : outcomes.failures.entrySet()) {
+				stderr.println(String.format("%d deliveries failed: %s", reason.getValue().get(), reason.getKey()));
+			}
+			stdout.println(String.format("%d messages accepted, %d rejected; %d deliveries %s, %d failed, %d pending",
+					accepted, rejected, completed, forwarded ? "forwarded to the elected node" : "posted", failed, pending));
+			if (rejected > 0 || failed > 0 || pending > 0) {
+				stdout.flush();
+				throw new UnloggedFailure(1, String.format("%d messages rejected, %d deliveries failed, %d pending",
+						rejected, failed, pending));
+			}
+		}
+
+		/**
+		 * Parses a line of batch input.
+		 *
+		 * @param gson
+		 * @param line
+		 * @return the payload
+		 */
+		protected Payload parse(Gson gson, String line) {
+			if (!line.trim().startsWith("{")) {
+				Payload payload = Payload.text(line);
+				if (!StringUtils.isEmpty(room)) {
+					payload.room(room);
+				}
+				return payload;
+			}
+
+			BatchMessage msg = gson.fromJson(line, BatchMessage.class);
+			if (msg == null || StringUtils.isEmpty(msg.message)) {
+				throw new IllegalArgumentException("no message");
+			}
+			Payload payload = Payload.text(msg.message);
+			if (!StringUtils.isEmpty(msg.format)) {
+				payload.messageFormat(valueOf(MessageFormat.class, msg.format, "format"));
+			}
+			if (!StringUtils.isEmpty(msg.color)) {
+				payload.color(valueOf(Color.class, msg.color, "color"));
+			}
+			payload.notify = msg.notify;
+			String destination = StringUtils.isEmpty(msg.room) ? room : msg.room;
+			if (!StringUtils.isEmpty(destination)) {
+				payload.room(destination);
+			}
+			return payload;
+		}
+
+		private static <T extends Enum<T>> T valueOf(Class<T> type, String value, String name) {
+			try {
+				return Enum.valueOf(type, value.trim().toLowerCase());
+			} catch (IllegalArgumentException e) {
+				throw new IllegalArgumentException(String.format("unknown %s '%s'", name, value));
+			}
+		}
+
+		/**
+		 * Counts the outcomes of the deliveries of a batch.
+		 */
+		static class BatchOutcomes implements DeliveryCallback {
+
+			final Set<Long> ids = Collections.newSetFromMap(new ConcurrentHashMap<Long, Boolean>());
+
+			final AtomicInteger completed = new AtomicInteger();
+
+			final ConcurrentMap<String, AtomicInteger> failures = new ConcurrentHashMap<String, AtomicInteger>();
+
+			final Semaphore resolved = new Semaphore(0);
+
+			void track(Payload payload) {
+				ids.add(payload.getId());
+			}
+
+			/**
+			 * Waits until the given number of deliveries have an outcome.
+			 *
+			 * @param deliveries
+			 * @param deadline in nanoseconds
+			 * @throws InterruptedException
+			 */
+			void await(int deliveries, long deadline) throws InterruptedException {
+				if (resolved.tryAcquire(deliveries, deadline - System.nanoTime(), TimeUnit.NANOSECONDS)) {
+					resolved.release(deliveries);
+				}
+			}
+
+			int getFailed() {
+				int failed = 0;
+				for (AtomicInteger count : failures.values()) {
+					failed += count.get();
+				}
+				return failed;
+			}
+
+			@Override
+			public void completed(Delivery delivery, long elapsed) {
+				if (ids.contains(delivery.payload.getId())) {
+					completed.incrementAndGet();
+					resolved.release();
+				}
+			}
+
+			@Override
+			public void failed(Delivery delivery, Exception cause, long elapsed) {
+				if (ids.contains(delivery.payload.getId())) {
+					String reason = String.valueOf(cause.getMessage());
+					AtomicInteger count = failures.get(reason);
+					if (count == null) {
+						AtomicInteger first = new AtomicInteger();
+						count = failures.putIfAbsent(reason, first);
+						if (count == null) {
+							count = first;
+						}
+					}
+					count.incrementAndGet();
+					resolved.release();
+				}
+			}
+		}
+
+		/**
+		 * A JSON line of batch input.
+		 */
+		static class BatchMessage {
+			String message;
+			String room;
+			String color;
+			String format;
+			boolean notify;
+		}
+	}
+
+	@CommandMetaData(name = "stats", description = "Show delivery statistics")
+	public static class StatsCommand extends SshCommand {
+
+		/**
+		 * Show delivery statistics
+		 */
+		@Override
+		public void run() throws Failure {
 			IRuntimeManager runtimeManager = GitblitContext.getManager(IRuntimeManager.class);
 			HipChatter.init(runtimeManager);
-		    HipChatter.instance().sendAsync(payload);
+			HipChatMetrics metrics = HipChatter.instance().getMetrics();
+
+			String [] headers = { "Metric", "Value" };
+			Object [][] data = {
+					{ "engine", HipChatter.instance().engine.getClass().getSimpleName() },
+					{ "executor", HipChatter.instance().taskPool.getClass().getSimpleName() },
+					{ "submitted", metrics.getSubmitted() },
+					{ "delivered", metrics.getDelivered() },
+					{ "failed", metrics.getFailed() },
+					{ "shed", metrics.getShed() },
+					{ "duplicates", metrics.getDeduplicated() },
+					{ "suppressed", metrics.getSuppressed() },
+					{ "truncated", metrics.getTruncated() },
+					{ "expired", metrics.getExpired() },
+					{ "overflowed", metrics.getOverflowed() },
+					{ "coalesced", metrics.getCoalesced() },
+					{ "in flight", metrics.getInFlight() },
+					{ "concurrency limit", HipChatter.instance().getLimiter().getLimit() },
+					{ "queued (high)", HipChatter.instance().getQueue().size(Priority.high) },
+					{ "queued (normal)", HipChatter.instance().getQueue().size(Priority.normal) },
+					{ "queued (low)", HipChatter.instance().getQueue().size(Priority.low) },
+					{ "queued (bytes)", HipChatter.instance().getQueue().bytes() },
+					{ "queued (ticket renders)", HipChatter.instance().ticketPool.getQueue().size() },
+					{ "markdown renders running", HipChatter.instance().getMarkdownRenderer().getRunning() },
+					{ "markdown renders skipped", HipChatter.instance().getMarkdownRenderer().getSkipped() },
+					{ "queued repositories", HipChatter.instance().getQueue().flows() },
+					{ "avg latency (ms)", metrics.getAverageLatency() },
+					{ "max latency (ms)", metrics.getMaxLatency() },
+					{ "threads", Thread.activeCount() }
+			};
+			stdout.println(FlipTable.of(headers, data, Borders.BODY_HCOLS));
+		}
+	}
+
+	@CommandMetaData(name = "breakers", description = "Show the circuit breaker state of each room")
+	public static class BreakersCommand extends SshCommand {
+
+		/**
+		 * Show the circuit breakers
+		 */
+		@Override
+		public void run() throws Failure {
+			IRuntimeManager runtimeManager = GitblitContext.getManager(IRuntimeManager.class);
+			HipChatter.init(runtimeManager);
+			List<CircuitBreaker> breakers = HipChatter.instance().getBreakers();
+
+			String [] headers = { "Room", "State", "Failures", "Rejected", "Opened" };
+			Object [][] data = new Object[breakers.size()][];
+			for (int i = 0; i < breakers.size(); i++) {
+				CircuitBreaker breaker = breakers.get(i);
+				long openedAt = breaker.getOpenedAt();
+				data[i] = new Object[] {
+						breaker.getRoom(),
+						breaker.getState(),
+						breaker.getFailures(),
+						breaker.getRejected(),
+						openedAt == 0 ? "" : new Date(openedAt) };
+			}
+			stdout.println(FlipTable.of(headers, data, Borders.BODY_HCOLS));
+			stdout.println(String.format("%d notifications waiting in the outbox", HipChatter.instance().getOutbox().size()));
+		}
+	}
+
+	@CommandMetaData(name = "rooms", description = "Show the token status and delivery statistics of each room")
+	@UsageExamples(examples = {
+			@UsageExample(syntax = "${cmd}", description = "Shows the cached token status of each room"),
+			@UsageExample(syntax = "${cmd} --validate", description = "Validates the token of each configured room")
+	})
+	public static class RoomsCommand extends SshCommand {
+
+		@Option(name = "--validate", usage = "Validate the room tokens now")
+		boolean validate;
+
+		/**
+		 * Show the rooms
+		 */
+		@Override
+		public void run() throws Failure {
+			IRuntimeManager runtimeManager = GitblitContext.getManager(IRuntimeManager.class);
+			HipChatter.init(runtimeManager);
+			HipChatter hipChatter = HipChatter.instance();
+			if (validate) {
+				for (String room : hipChatter.getConfiguredRooms().keySet()) {
+					hipChatter.validateToken(room);
+				}
+			}
+			Map<String, RoomMetrics> metrics = hipChatter.getMetrics().getRooms();
+			Map<String, RoomStatus> status = hipChatter.getRoomStatus();
+			Set<String> rooms = new TreeSet<String>(hipChatter.getConfiguredRooms().keySet());
+			rooms.addAll(metrics.keySet());
+
+			String [] headers = { "Room", "Token", "Checked", "Delivered", "Failed" };
+			Object [][] data = new Object[rooms.size()][];
+			int i = 0;
+			for (String room : rooms) {
+				RoomStatus roomStatus = status.get(room);
+				RoomMetrics roomMetrics = metrics.get(room);
+				data[i++] = new Object[] {
+						room,
+						roomStatus == null ? "" : (roomStatus.getState() + (roomStatus.getDetail() == null ? "" : " (" + roomStatus.getDetail() + ")")),
+						roomStatus == null || roomStatus.getState() == RoomStatus.State.unchecked ? "" : new Date(roomStatus.getChecked()),
+						roomMetrics == null ? 0 : roomMetrics.getDelivered(),
+						roomMetrics == null ? 0 : roomMetrics.getFailed() };
+			}
+			stdout.println(FlipTable.of(headers, data, Borders.BODY_HCOLS));
 		}
 	}
-}
 
+	@CommandMetaData(name = "bulk", description = "Show or switch bulk ticket import mode")
+	@UsageExamples(examples = {
+			@UsageExample(syntax = "${cmd}", description = "Shows the active bulk ticket imports"),
+			@UsageExample(syntax = "${cmd} on myRepo", description = "Suppresses the ticket notifications of myRepo during an import"),
+			@UsageExample(syntax = "${cmd} off", description = "Switches bulk mode off for all repositories")
+	})
+	public static class BulkCommand extends SshCommand {
+
+		@Argument(index = 0, metaVar = "on|off", usage = "Switch bulk mode on or off")
+		String mode;
+
+		@Argument(index = 1, metaVar = "REPOSITORY", usage = "Repository, all repositories if omitted")
+		String repository;
+
+		/**
+		 * Show or switch bulk mode
+		 */
+		@Override
+		public void run() throws Failure {
+			IRuntimeManager runtimeManager = GitblitContext.getManager(IRuntimeManager.class);
+			HipChatter.init(runtimeManager);
+			HipChatter hipChatter = HipChatter.instance();
+			BulkDetector bulk = hipChatter.getBulkDetector();
+
+			if (!StringUtils.isEmpty(mode)) {
+				if (!"on".equalsIgnoreCase(mode) && !"off".equalsIgnoreCase(mode)) {
+					throw new UnloggedFailure(1, "mode must be on or off");
+				}
+				String name = StringUtils.isEmpty(repository) ? BulkDetector.ALL : repository;
+				hipChatter.setBulkMode(name, "on".equalsIgnoreCase(mode));
+				stdout.println(String.format("bulk mode %s for %s", mode.toLowerCase(),
+						BulkDetector.ALL.equals(name) ? "all repositories" : name));
+				return;
+			}
+
+			List<BulkDetector.Bulk> active = bulk.getActive();
+			String [] headers = { "Repository", "Started", "Created", "Updated" };
+			Object [][] data = new Object[active.size()][];
+			for (int i = 0; i < active.size(); i++) {
+				BulkDetector.Bulk entry = active.get(i);
+				data[i] = new Object[] {
+						StringUtils.stripDotGit(entry.getRepository().name),
+						new Date(entry.getStarted()),
+						entry.getCreated(),
+						entry.getUpdated() };
+			}
+			stdout.println(FlipTable.of(headers, data, Borders.BODY_HCOLS));
+			List<String> manual = bulk.getManual();
+			if (!manual.isEmpty()) {
+				stdout.println("bulk mode is on for " + StringUtils.flattenStrings(manual, ", "));
+			}
+			List<String> excluded = bulk.getExcluded();
+			if (!excluded.isEmpty()) {
+				stdout.println("bulk mode is off for " + StringUtils.flattenStrings(excluded, ", "));
+			}
+		}
+	}
+
+	@CommandMetaData(name = "cluster", description = "Show the cluster lease")
+	public static class ClusterCommand extends SshCommand {
+
+		/**
+		 * Show the cluster lease
+		 */
+		@Override
+		public void run() throws Failure {
+			IRuntimeManager runtimeManager = GitblitContext.getManager(IRuntimeManager.class);
+			HipChatter.init(runtimeManager);
+			ClusterLease cluster = HipChatter.instance().getCluster();
+			if (cluster == null) {
+				stdout.println("cluster mode is disabled");
+				return;
+			}
+
+			String [] headers = { "Property", "Value" };
+			Object [][] data = {
+					{ "node", cluster.getNode() },
+					{ "leader", cluster.getHolder() == null ? "" : cluster.getHolder() },
+					{ "leading", cluster.isLeader() },
+					{ "lease expires", cluster.getExpires() == 0 ? "" : new Date(cluster.getExpires()) },
+					{ "inbox", HipChatter.instance().getInbox().size() },
+					{ "outbox", HipChatter.instance().getOutbox().size() }
+			};
+			stdout.println(FlipTable.of(headers, data, Borders.BODY_HCOLS));
+		}
+	}
+
+	@CommandMetaData(name = "bench", description = "Measure delivery throughput and latency")
+	@UsageExamples(examples = {
+			@UsageExample(syntax = "${cmd} --stub -n 1000 -c 50", description = "Sends 1000 messages to a local stub endpoint, 50 at a time"),
+			@UsageExample(syntax = "${cmd} myRoom -n 20 -r 2", description = "Sends 20 messages to myRoom at 2 messages per second")
+	})
+	public static class BenchCommand extends SshCommand {
+
+		@Argument(index = 0, metaVar = "ROOM", usage = "Destination Room for messages")
+		String room;
+
+		@Option(name = "--count", aliases = { "-n" }, usage = "Number of messages to send")
+		int count = 100;
+
+		@Option(name = "--concurrency", aliases = { "-c" }, usage = "Maximum number of unfinished messages")
+		int concurrency = 10;
+
+		@Option(name = "--rate", aliases = { "-r" }, usage = "Messages per second, 0 for unlimited")
+		int rate;
+
+		@Option(name = "--stub", usage = "Send to a local stub endpoint instead of HipChat")
+		boolean stub;
+
+		@Option(name = "--stub-latency", metaVar = "MILLISECONDS", usage = "Response latency of the stub endpoint")
+		int stubLatency = 50;
+
+		@Option(name = "--timeout", metaVar = "SECONDS", usage = "Maximum duration of the benchmark")
+		int timeout = 60;
+
+		/**
+		 * Run the benchmark
+		 */
+		@Override
+		public void run() throws Failure {
+			if (count < 1 || concurrency < 1) {
+				throw new Failure(1, "count and concurrency must be positive");
+			}
+			IRuntimeManager runtimeManager = GitblitContext.getManager(IRuntimeManager.class);
+			HipChatter.init(runtimeManager);
+			HipChatter hipChatter = HipChatter.instance();
+
+			StubEndpoint endpoint = null;
+			if (stub) {
+				try {
+					endpoint = new StubEndpoint(stubLatency);
+				} catch (IOException e) {
+					throw new Failure(1, "Failed to start the stub endpoint", e);
+				}
+			}
+
+			LatencyProbe probe = new LatencyProbe(concurrency);
+
+			// identifies the messages of this run so they are not deduplicated
+			String run = Long.toString(System.currentTimeMillis(), 36);
+			HipChatMetrics metrics = endpoint == null ? hipChatter.getMetrics() : hipChatter.getStubMetrics();
+			long coalesced = metrics.getCoalesced();
+			long overflowed = metrics.getOverflowed();
+			long shed = metrics.getShed();
+			hipChatter.addListener(probe);
+			long start = System.nanoTime();
+			long deadline = start + TimeUnit.SECONDS.toNanos(timeout);
+			long interval = rate > 0 ? TimeUnit.SECONDS.toNanos(1) / rate : 0;
+			int sent = 0;
+			try {
+				for (; sent < count; sent++) {
+					if (interval > 0) {
+						long wait = start + sent * interval - System.nanoTime();
+						if (wait > 0) {
+							TimeUnit.NANOSECONDS.sleep(wait);
+						}
+					}
+					if (!probe.acquire(deadline)) {
+						break;
+					}
+					Payload payload = Payload.text(String.format("Benchmark %s message %d of %d", run, sent + 1, count))
+							.priority(Priority.low);
+					if (!StringUtils.isEmpty(room)) {
+						payload.room(room);
+					}
+					if (endpoint != null) {
+						payload.endpoint(endpoint.getUrl());
+					}
+					probe.track(payload, System.nanoTime());
+					hipChatter.sendAsync(payload);
+				}
+				// wait for the outstanding messages
+				probe.await(deadline);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			} finally {
+				hipChatter.removeListener(probe);
+				if (endpoint != null) {
+					endpoint.close();
+				}
+			}
+			long elapsed = System.nanoTime() - start;
+
+			String [] headers = { "Metric", "Value" };
+			List<Object []> rows = new ArrayList<Object []>();
+			rows.add(new Object [] { "target", endpoint == null ? hipChatter.getApiUrl() : endpoint.getUrl() });
+			rows.add(new Object [] { "engine", hipChatter.engine.getClass().getSimpleName() });
+			rows.addAll(Arrays.asList(probe.report(elapsed)));
+			rows.add(new Object [] { "concurrency limit", (endpoint == null ? hipChatter.live : hipChatter.stub).limiter.getLimit() });
+			rows.add(new Object [] { "coalesced", metrics.getCoalesced() - coalesced });
+			rows.add(new Object [] { "overflowed", metrics.getOverflowed() - overflowed });
+			rows.add(new Object [] { "shed", metrics.getShed() - shed });
+			stdout.println(FlipTable.of(headers, rows.toArray(new Object[rows.size()][]), Borders.BODY_HCOLS));
+		}
+	}
+
+	@CommandMetaData(name = "replay", description = "Replay recorded hook events against a stub endpoint")
+	@UsageExamples(examples = {
+			@UsageExample(syntax = "${cmd}", description = "Replays all recordings at the recorded pace"),
+			@UsageExample(syntax = "${cmd} hooks-1445500000000.rec --speed 10", description = "Replays a recording 10 times faster")
+	})
+	public static class ReplayCommand extends SshCommand {
+
+		@Argument(index = 0, multiValued = true, metaVar = "FILE", usage = "Recordings to replay, all by default")
+		List<String> files;
+
+		@Option(name = "--speed", metaVar = "FACTOR", usage = "Replay speed, 0 for no pauses between events")
+		double speed = 1;
+
+		@Option(name = "--concurrency", aliases = { "-c" }, usage = "Maximum number of unfinished messages")
+		int concurrency = 1000;
+
+		@Option(name = "--stub-latency", metaVar = "MILLISECONDS", usage = "Response latency of the stub endpoint")
+		int stubLatency = 50;
+
+		@Option(name = "--timeout", metaVar = "SECONDS", usage = "Maximum duration of the replay")
+		int timeout = 3600;
+
+		/**
+		 * Replay the recordings
+		 */
+		@Override
+		public void run() throws Failure {
+			if (speed < 0 || concurrency < 1) {
+				throw new Failure(1, "speed must not be negative and concurrency must be positive");
+			}
+			IRuntimeManager runtimeManager = GitblitContext.getManager(IRuntimeManager.class);
+			HipChatter.init(runtimeManager);
+			HipChatter hipChatter = HipChatter.instance();
+
+			File folder = hipChatter.getRecordingFolder();
+			List<File> recordings = new ArrayList<File>();
+			if (files == null || files.isEmpty()) {
+				recordings.addAll(EventRecorder.getFiles(folder));
+			} else {
+				for (String name : files) {
+					File file = new File(name);
+					recordings.add(file.isAbsolute() ? file : new File(folder, name));
+				}
+			}
+			List<HookEvent> events = new ArrayList<HookEvent>();
+			for (File file : recordings) {
+				try {
+					events.addAll(EventRecorder.read(file));
+				} catch (IOException e) {
+					throw new Failure(1, "Failed to read " + file, e);
+				}
+			}
+			if (events.isEmpty()) {
+				throw new UnloggedFailure(1, "There are no recorded events in " + folder);
+			}
+
+			StubEndpoint endpoint;
+			try {
+				endpoint = new StubEndpoint(stubLatency);
+			} catch (IOException e) {
+				throw new Failure(1, "Failed to start the stub endpoint", e);
+			}
+
+			LatencyProbe probe = new LatencyProbe(concurrency);
+			EventReplayer replayer = new EventReplayer(hipChatter, runtimeManager.getSettings(), endpoint.getUrl(), probe);
+			hipChatter.addListener(probe);
+			long start = System.nanoTime();
+			long deadline = start + TimeUnit.SECONDS.toNanos(timeout);
+			int fired = 0;
+			try {
+				fired = replayer.replay(events, speed, deadline);
+				// wait for the outstanding messages
+				probe.await(deadline);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			} finally {
+				hipChatter.removeListener(probe);
+				endpoint.close();
+			}
+			long elapsed = System.nanoTime() - start;
+
+			String [] headers = { "Metric", "Value" };
+			List<Object []> rows = new ArrayList<Object []>();
+			rows.add(new Object [] { "recordings", recordings.size() });
+			rows.add(new Object [] { "events", String.format("%d of %d replayed", fired, events.size()) });
+			rows.add(new Object [] { "skipped", replayer.getSkipped() });
+			rows.add(new Object [] { "speed", speed == 0 ? "unpaced" : speed + "x" });
+			rows.addAll(Arrays.asList(probe.report(elapsed)));
+			stdout.println(FlipTable.of(headers, rows.toArray(new Object[rows.size()][]), Borders.BODY_HCOLS));
+		}
+	}
+}
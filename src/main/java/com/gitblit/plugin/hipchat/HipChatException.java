@@ -0,0 +1,50 @@
+/*
+ * Copyright 2014 gitblit.com.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.gitblit.plugin.hipchat;
+
+import java.io.IOException;
+
+/**
+ * Thrown when HipChat responds with an unexpected status code.
+ *
+ * @author James Moger
+ *
+ */
+public class HipChatException extends IOException {
+
+	private static final long serialVersionUID = 1L;
+
+	final int status;
+
+	public HipChatException(int status, String message) {
+		super(message);
+		this.status = status;
+	}
+
+	public int getStatus() {
+		return status;
+	}
+
+	/**
+	 * Returns true if HipChat rejected the request itself, e.g. a bad token
+	 * or an oversized message.  Such failures do not indicate an outage.
+	 *
+	 * @return true if this is a client error
+	 */
+	public boolean isClientError() {
+		return status >= 400 && status < 500 && status != 429;
+	}
+}
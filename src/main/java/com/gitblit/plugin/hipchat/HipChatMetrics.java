@@ -0,0 +1,217 @@
+/*
+ * Copyright 2014 gitblit.com.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.gitblit.plugin.hipchat;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Delivery counters reported by the SSH stats command.
+ *
+ * @author James Moger
+ *
+ */
+public class HipChatMetrics {
+
+	final AtomicLong submitted = new AtomicLong();
+
+	final AtomicLong delivered = new AtomicLong();
+
+	final AtomicLong failed = new AtomicLong();
+
+	final AtomicLong shed = new AtomicLong();
+
+	final AtomicLong deduplicated = new AtomicLong();
+
+	final AtomicLong truncated = new AtomicLong();
+
+	final AtomicLong expired = new AtomicLong();
+
+	final AtomicLong overflowed = new AtomicLong();
+
+	final AtomicLong coalesced = new AtomicLong();
+
+	final AtomicLong suppressed = new AtomicLong();
+
+	final AtomicInteger inFlight = new AtomicInteger();
+
+	final AtomicLong totalLatency = new AtomicLong();
+
+	final AtomicLong maxLatency = new AtomicLong();
+
+	final ConcurrentMap<String, RoomMetrics> rooms = new ConcurrentHashMap<String, RoomMetrics>();
+
+	void submitted() {
+		submitted.incrementAndGet();
+		inFlight.incrementAndGet();
+	}
+
+	void delivered(String room, long elapsed) {
+		room(room).delivered.incrementAndGet();
+		delivered.incrementAndGet();
+		inFlight.decrementAndGet();
+		latency(elapsed);
+	}
+
+	void failed(String room, long elapsed) {
+		room(room).failed.incrementAndGet();
+		failed.incrementAndGet();
+		inFlight.decrementAndGet();
+		latency(elapsed);
+	}
+
+	void shed() {
+		shed.incrementAndGet();
+	}
+
+	void deduplicated() {
+		deduplicated.incrementAndGet();
+	}
+
+	void truncated() {
+		truncated.incrementAndGet();
+	}
+
+	void expired() {
+		expired.incrementAndGet();
+	}
+
+	void overflowed() {
+		overflowed.incrementAndGet();
+	}
+
+	void coalesced(int count) {
+		coalesced.addAndGet(count);
+	}
+
+	void suppressed() {
+		suppressed.incrementAndGet();
+	}
+
+	private RoomMetrics room(String room) {
+		String key = room == null ? "" : room;
+		RoomMetrics metrics = rooms.get(key);
+		if (metrics == null) {
+			metrics = new RoomMetrics();
+			RoomMetrics existing = rooms.putIfAbsent(key, metrics);
+			if (existing != null) {
+				metrics = existing;
+			}
+		}
+		return metrics;
+	}
+
+	private void latency(long elapsed) {
+		totalLatency.addAndGet(elapsed);
+		long max;
+		do {
+			max = maxLatency.get();
+		} while (elapsed > max && !maxLatency.compareAndSet(max, elapsed));
+	}
+
+	public long getSubmitted() {
+		return submitted.get();
+	}
+
+	public long getDelivered() {
+		return delivered.get();
+	}
+
+	public long getFailed() {
+		return failed.get();
+	}
+
+	public long getShed() {
+		return shed.get();
+	}
+
+	public long getDeduplicated() {
+		return deduplicated.get();
+	}
+
+	public long getTruncated() {
+		return truncated.get();
+	}
+
+	public long getExpired() {
+		return expired.get();
+	}
+
+	public long getOverflowed() {
+		return overflowed.get();
+	}
+
+	/**
+	 * Returns the number of notifications which were merged into another
+	 * notification for the same room.
+	 *
+	 * @return the number of coalesced notifications
+	 */
+	public long getCoalesced() {
+		return coalesced.get();
+	}
+
+	/**
+	 * Returns the number of pushes which were not posted because the pusher
+	 * or the repository exceeded its throttle.
+	 *
+	 * @return the number of suppressed pushes
+	 */
+	public long getSuppressed() {
+		return suppressed.get();
+	}
+
+	public int getInFlight() {
+		return inFlight.get();
+	}
+
+	public long getAverageLatency() {
+		long completed = delivered.get() + failed.get();
+		return completed == 0 ? 0 : totalLatency.get() / completed;
+	}
+
+	public long getMaxLatency() {
+		return maxLatency.get();
+	}
+
+	/**
+	 * Returns the delivery counters of each room, sorted by room.
+	 *
+	 * @return the room counters
+	 */
+	public Map<String, RoomMetrics> getRooms() {
+		return new TreeMap<String, RoomMetrics>(rooms);
+	}
+
+	public static class RoomMetrics {
+
+		final AtomicLong delivered = new AtomicLong();
+
+		final AtomicLong failed = new AtomicLong();
+
+		public long getDelivered() {
+			return delivered.get();
+		}
+
+		public long getFailed() {
+			return failed.get();
+		}
+	}
+}
@@ -18,10 +18,14 @@ import java.io.IOException;
 import java.text.MessageFormat;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 import org.eclipse.jgit.lib.Repository;
 import org.eclipse.jgit.revwalk.RevCommit;
+import org.eclipse.jgit.revwalk.RevFlag;
+import org.eclipse.jgit.revwalk.RevFlagSet;
 import org.eclipse.jgit.revwalk.RevSort;
 import org.eclipse.jgit.revwalk.RevWalk;
 import org.eclipse.jgit.transport.ReceiveCommand;
@@ -37,10 +41,7 @@ import com.gitblit.git.GitblitReceivePack;
 import com.gitblit.manager.IRuntimeManager;
 import com.gitblit.models.RepositoryModel;
 import com.gitblit.models.UserModel;
-import com.gitblit.plugin.hipchat.Payload.Color;
 import com.gitblit.servlet.GitblitContext;
-import com.gitblit.utils.ActivityUtils;
-import com.gitblit.utils.StringUtils;
 
 /**
  * This hook will post a message to a room when a ref is updated.
@@ -57,6 +58,12 @@ public class HipChatReceiveHook extends ReceiveHook {
 
 	final HipChatter hipChatter;
 
+	/**
+	 * The most branch updates which are collected in one walk, each takes a
+	 * flag of the walk.
+	 */
+	static final int MAX_FLAGS = 16;
+
 	enum RefType {
 		BRANCH, TAG
 	}
@@ -76,28 +83,38 @@ public class HipChatReceiveHook extends ReceiveHook {
 
 	@Override
 	public void onPostReceive(GitblitReceivePack receivePack, Collection<ReceiveCommand> commands) {
-		if (!shallPost(receivePack, commands)) {
+		long start = System.nanoTime();
+		// evaluate the compiled rules before doing any Git work
+		RefFilter filter = hipChatter.getRefFilter(receivePack.getRepositoryModel());
+		if (!filter.acceptsPusher(receivePack.getUserModel().username)) {
+			return;
+		}
+		List<ReceiveCommand> accepted = new ArrayList<ReceiveCommand>();
+		for (ReceiveCommand cmd : commands) {
+			if (filter.acceptsRef(cmd.getRefName())) {
+				accepted.add(cmd);
+			}
+		}
+		if (accepted.isEmpty()) {
 			return;
 		}
 
-    	IRuntimeManager runtimeManager = GitblitContext.getManager(IRuntimeManager.class);
+		if (!shallPost(receivePack, accepted)) {
+			return;
+		}
+
+		Map<ReceiveCommand, List<RevCommit>> commits = getCommits(receivePack, accepted);
 		try {
-			for (ReceiveCommand cmd : commands) {
-				RefType rType = null;
+			for (ReceiveCommand cmd : accepted) {
+				RefType rType;
 				if (cmd.getRefName().startsWith(Constants.R_TAGS)) {
 					rType = RefType.TAG;
-			    	boolean shallPostTag = runtimeManager.getSettings().getBoolean(Plugin.SETTING_POST_TAGS, true);
-			    	if (!shallPostTag) {
-			    		continue;
-			    	}
-				} else if (cmd.getRefName().startsWith(Constants.R_HEADS)) {
-					rType = RefType.BRANCH;
-			    	boolean shallPostBranch = runtimeManager.getSettings().getBoolean(Plugin.SETTING_POST_BRANCHES, true);
-			    	if (!shallPostBranch) {
-			    		continue;
-			    	}
 				} else {
-					// ignore other refs
+					rType = RefType.BRANCH;
+				}
+
+				List<RevCommit> list = commits.get(cmd);
+				if (list != null && !filter.acceptsCommits(list.size())) {
 					continue;
 				}
 
@@ -106,10 +123,10 @@ public class HipChatReceiveHook extends ReceiveHook {
 					sendCreate(receivePack, cmd, rType);
 					break;
 				case UPDATE:
-					sendUpdate(receivePack, cmd, rType, true);
+					sendUpdate(receivePack, cmd, rType, true, list);
 					break;
 				case UPDATE_NONFASTFORWARD:
-					sendUpdate(receivePack, cmd, rType, false);
+					sendUpdate(receivePack, cmd, rType, false, null);
 					break;
 				case DELETE:
 					sendDelete(receivePack, cmd, rType);
@@ -119,17 +136,46 @@ public class HipChatReceiveHook extends ReceiveHook {
 		} catch (IOException e) {
 			log.error("Failed to notify HipChat!", e);
 		}
+
+		EventRecorder recorder = hipChatter.getRecorder();
+		if (recorder != null) {
+			HookEvent event = HookEvent.push(receivePack.getRepositoryModel().name,
+					receivePack.getUserModel().username);
+			for (ReceiveCommand cmd : accepted) {
+				List<RevCommit> list = commits.get(cmd);
+				event.addRef(cmd.getRefName(), getCommand(cmd), list == null ? 0 : list.size());
+			}
+			recorder.record(event.duration(System.nanoTime() - start));
+		}
+	}
+
+	private HookEvent.Command getCommand(ReceiveCommand cmd) {
+		switch (cmd.getType()) {
+		case CREATE:
+			return HookEvent.Command.create;
+		case UPDATE_NONFASTFORWARD:
+			return HookEvent.Command.rewrite;
+		case DELETE:
+			return HookEvent.Command.delete;
+		default:
+			return HookEvent.Command.update;
+		}
 	}
 
 	/**
 	 * Determine if the ref changes for this repository should be posted to HipChat.
+	 * A push which exceeds the pusher or repository throttle is counted for a
+	 * later summary instead.
 	 *
 	 * @param receivePack
 	 * @return true if the ref changes should be posted
 	 */
 	protected boolean shallPost(GitblitReceivePack receivePack, Collection<ReceiveCommand> commands) {
 		boolean shallPostRepo = hipChatter.shallPost(receivePack.getRepositoryModel());
-		return shallPostRepo;
+		if (!shallPostRepo) {
+			return false;
+		}
+		return hipChatter.acquirePush(receivePack.getRepositoryModel(), receivePack.getUserModel());
 	}
 
 	/**
@@ -146,11 +192,8 @@ public class HipChatReceiveHook extends ReceiveHook {
 		String repoUrl = getUrl(repo.name, null, null);
 		String logUrl = getUrl(repo.name, shortRef, null);
 
-		String msg = String.format("<b>%s</b> has created %s <a href=\"%s\">%s</a> in <a href=\"%s\">%s</a>",
-				user.getDisplayName(), rType.name().toLowerCase(), logUrl, shortRef, repoUrl, StringUtils.stripDotGit(repo.name));
-
-    	Payload payload = Payload.html(msg);
-    	payload.setColor(Color.gray);
+		Payload payload = PushMessages.created(user.getDisplayName(), rType.name().toLowerCase(), shortRef, logUrl,
+				repoUrl, repo.name);
     	hipChatter.setRoom(repo, payload);
     	hipChatter.sendAsync(payload);
     }
@@ -162,92 +205,50 @@ public class HipChatReceiveHook extends ReceiveHook {
 	 * @param cmd
 	 * @param rType
 	 * @param isFF
+	 * @param commits the new commits of a fast-forwarded branch
 	 */
-	protected void sendUpdate(GitblitReceivePack receivePack, ReceiveCommand cmd, RefType rType, boolean isFF) throws IOException {
+	protected void sendUpdate(GitblitReceivePack receivePack, ReceiveCommand cmd, RefType rType, boolean isFF,
+			List<RevCommit> commits) throws IOException {
 		UserModel user = receivePack.getUserModel();
 		RepositoryModel repo = receivePack.getRepositoryModel();
 		String shortRef = Repository.shortenRefName(cmd.getRefName());
 		String repoUrl = getUrl(repo.name, null, null);
 
-		List<RevCommit> commits = null;
-		String action;
 		String url;
 		switch (rType) {
 		case TAG:
 			// commit link
 			url = getUrl(repo.name, null, shortRef);
-			action = "<b>MOVED</b> tag";
+			commits = null;
 			break;
 		default:
 			// log link
 			url = getUrl(repo.name, shortRef, null);
-			if (isFF) {
-				commits = getCommits(receivePack, cmd.getOldId().name(), cmd.getNewId().name());
-				if (commits.size() == 1) {
-					action = "pushed 1 commit to";
-				} else {
-					action = String.format("pushed %d commits to", commits.size());
-				}
-			} else {
-				action = "<b>REWRITTEN</b>";
+			if (!isFF) {
+				commits = null;
+			} else if (commits == null) {
+				commits = new ArrayList<RevCommit>();
 			}
 			break;
 		}
+		String action = PushMessages.action(rType == RefType.TAG, isFF, commits == null ? 0 : commits.size());
 
-		StringBuilder sb = new StringBuilder();
-		String msg = String.format("<b>%s</b> has %s <a href=\"%s\">%s</a> in <a href=\"%s\">%s</a>",
-				user.getDisplayName(), action, url, shortRef, repoUrl, StringUtils.stripDotGit(repo.name));
-		sb.append(msg);
-
+		List<String> rows = null;
 		if (commits != null) {
 			// abbreviated commit list
 			int shortIdLen = receivePack.getGitblit().getSettings().getInteger(Keys.web.shortCommitIdLength, 6);
-			int maxCommits = 5;
-			sb.append("\n<table><tbody>\n");
-			for (int i = 0; i < Math.min(maxCommits, commits.size()); i++) {
+			rows = new ArrayList<String>();
+			for (int i = 0; i < Math.min(PushMessages.MAX_COMMITS, commits.size()); i++) {
 				RevCommit commit = commits.get(i);
-				String username = "";
-				String email = "";
-				if (commit.getAuthorIdent().getEmailAddress() != null) {
-					username = commit.getAuthorIdent().getName();
-					email = commit.getAuthorIdent().getEmailAddress().toLowerCase();
-					if (StringUtils.isEmpty(username)) {
-						username = email;
-					}
-				} else {
-					username = commit.getAuthorIdent().getName();
-					email = username.toLowerCase();
-				}
-				String gravatarUrl = ActivityUtils.getGravatarThumbnailUrl(email, 16);
-				String commitUrl = getUrl(repo.name, null, commit.getName());
-				String shortId = commit.getName().substring(0, shortIdLen);
-				String shortMessage = StringUtils.escapeForHtml(StringUtils.trimString(commit.getShortMessage(), Constants.LEN_SHORTLOG), false);
-				String row = String.format("<tr><td><img src=\"%s\"/></td><td><pre><a href=\"%s\">%s</a></pre></td><td>%s</td></tr>\n",
-						gravatarUrl, commitUrl, shortId, shortMessage);
-				sb.append(row);
-			}
-			sb.append("</tbody></table>");
-
-			// compare link
-			if (commits.size() > 1) {
-				String compareUrl = getUrl(repo.name, cmd.getOldId().getName(), cmd.getNewId().getName());
-				String compareText;
-				if (commits.size() > maxCommits) {
-					int diff = commits.size() - maxCommits;
-					if (diff == 1) {
-						compareText = "1 more commit";
-					} else {
-						compareText = String.format("%d more commits", diff);
-					}
-				} else {
-					compareText = String.format("view comparison of these %s commits", commits.size());
-				}
-				sb.append(String.format("<a href=\"%s\">%s</a>", compareUrl, compareText));
+				// the walk of the receive pack may not retain commit bodies
+				receivePack.getRevWalk().parseBody(commit);
+				rows.add(PushMessages.row(commit, getUrl(repo.name, null, commit.getName()), shortIdLen));
 			}
 		}
+		String compareUrl = getUrl(repo.name, cmd.getOldId().getName(), cmd.getNewId().getName());
 
-    	Payload payload = Payload.html(sb.toString());
-    	payload.setColor(Color.gray);
+		Payload payload = PushMessages.updated(user.getDisplayName(), action, url, shortRef, repoUrl, repo.name,
+				rows, commits == null ? 0 : commits.size(), compareUrl);
     	hipChatter.setRoom(repo, payload);
     	hipChatter.sendAsync(payload);
 	}
@@ -265,11 +266,8 @@ public class HipChatReceiveHook extends ReceiveHook {
 		String shortRef = Repository.shortenRefName(cmd.getRefName());
 		String repoUrl = getUrl(repo.name, null, null);
 
-		String msg = String.format("<b>%s</b> has deleted %s <b>%s</b> from <a href=\"%s\">%s</a>",
-				user.getDisplayName(), rType.name().toLowerCase(), shortRef, repoUrl, StringUtils.stripDotGit(repo.name));
-
-    	Payload payload = Payload.html(msg);
-    	payload.setColor(Color.gray);
+		Payload payload = PushMessages.deleted(user.getDisplayName(), rType.name().toLowerCase(), shortRef, repoUrl,
+				repo.name);
     	hipChatter.setRoom(repo, payload);
     	hipChatter.sendAsync(payload);
 	}
@@ -309,27 +307,146 @@ public class HipChatReceiveHook extends ReceiveHook {
 		return null;
     }
 
-    private List<RevCommit> getCommits(GitblitReceivePack receivePack, String baseId, String tipId) {
-    	List<RevCommit> list = new ArrayList<RevCommit>();
-		try (RevWalk walk = receivePack.getRevWalk()) {
+	/**
+	 * Collects the new commits of every fast-forwarded branch of the push.
+	 *
+	 * All branches are collected in a single topological walk: every new tip
+	 * is a start point with a flag of its own, which is carried down to its
+	 * ancestors, and every old tip is uninteresting.  Each commit of the walk
+	 * is then added to the branches whose flags it carries, so history shared
+	 * by several branches is walked only once.  Commits which were already
+	 * reachable from the old tip of another updated branch are not repeated;
+	 * a branch which was moved entirely onto such history is walked on its
+	 * own.  The walk may not retain commit bodies, so callers must parse the
+	 * body of a commit before reading it.  The sort of the walk is restored
+	 * afterwards.
+	 *
+	 * @param receivePack
+	 * @param commands
+	 * @return the commits of each fast-forward branch update, newest first
+	 */
+	protected Map<ReceiveCommand, List<RevCommit>> getCommits(GitblitReceivePack receivePack, Collection<ReceiveCommand> commands) {
+		Map<ReceiveCommand, List<RevCommit>> map = new HashMap<ReceiveCommand, List<RevCommit>>();
+		List<ReceiveCommand> updates = new ArrayList<ReceiveCommand>();
+		for (ReceiveCommand cmd : commands) {
+			if (ReceiveCommand.Type.UPDATE == cmd.getType() && cmd.getRefName().startsWith(Constants.R_HEADS)) {
+				updates.add(cmd);
+			}
+		}
+		if (updates.isEmpty()) {
+			return map;
+		}
+
+		RevWalk walk = receivePack.getRevWalk();
+		List<RevSort> sorts = new ArrayList<RevSort>();
+		for (RevSort sort : RevSort.values()) {
+			if (walk.hasRevSort(sort)) {
+				sorts.add(sort);
+			}
+		}
+		try {
+			// a walk has a limited number of flags
+			for (int i = 0; i < updates.size(); i += MAX_FLAGS) {
+				walk(walk, updates.subList(i, Math.min(updates.size(), i + MAX_FLAGS)), map);
+			}
+		} catch (IOException e) {
+			// Should never happen, the core receive process would have
+			// identified the missing object earlier before we got control.
+			log.error("failed to get commits", e);
+		} finally {
 			walk.reset();
-			walk.sort(RevSort.TOPO);
-			RevCommit tip = walk.parseCommit(receivePack.getRepository().resolve(tipId));
-			RevCommit base = walk.parseCommit(receivePack.getRepository().resolve(baseId));
-			walk.markStart(tip);
-			walk.markUninteresting(base);
+			walk.sort(RevSort.NONE);
+			for (RevSort sort : sorts) {
+				walk.sort(sort, true);
+			}
+		}
+		return map;
+	}
+
+	/**
+	 * Collects the new commits of several branch updates in one walk.
+	 *
+	 * @param walk
+	 * @param updates
+	 * @param map receives the commits of each update, newest first
+	 * @throws IOException
+	 */
+	private void walk(RevWalk walk, List<ReceiveCommand> updates, Map<ReceiveCommand, List<RevCommit>> map) throws IOException {
+		walk.reset();
+		walk.sort(RevSort.TOPO);
+		RevFlag [] flags = new RevFlag[updates.size()];
+		RevCommit [] tips = new RevCommit[updates.size()];
+		List<List<RevCommit>> lists = new ArrayList<List<RevCommit>>();
+		List<ReceiveCommand> moved = new ArrayList<ReceiveCommand>();
+		try {
+			RevFlagSet carried = new RevFlagSet();
+			for (int i = 0; i < flags.length; i++) {
+				flags[i] = walk.newFlag(updates.get(i).getRefName());
+				carried.add(flags[i]);
+				tips[i] = walk.parseCommit(updates.get(i).getNewId());
+				tips[i].add(flags[i]);
+				walk.markStart(tips[i]);
+				lists.add(new ArrayList<RevCommit>());
+			}
+			walk.carry(carried);
+			for (ReceiveCommand cmd : updates) {
+				walk.markUninteresting(walk.parseCommit(cmd.getOldId()));
+			}
+
+			// a topological walk generates all commits, and carries all
+			// flags, before it returns the first one
 			for (;;) {
 				RevCommit c = walk.next();
 				if (c == null) {
 					break;
 				}
-				list.add(c);
+				for (int i = 0; i < flags.length; i++) {
+					if (c.has(flags[i])) {
+						lists.get(i).add(c);
+					}
+				}
 			}
-		} catch (IOException e) {
-			// Should never happen, the core receive process would have
-			// identified the missing object earlier before we got control.
-			log.error("failed to get commits", e);
+			for (int i = 0; i < tips.length; i++) {
+				if (tips[i].has(RevFlag.UNINTERESTING)) {
+					moved.add(updates.get(i));
+				} else {
+					map.put(updates.get(i), lists.get(i));
+				}
+			}
+		} finally {
+			for (RevFlag flag : flags) {
+				if (flag != null) {
+					walk.disposeFlag(flag);
+				}
+			}
+		}
+
+		for (ReceiveCommand cmd : moved) {
+			map.put(cmd, walk(walk, cmd));
+		}
+	}
+
+	/**
+	 * Collects the new commits of a single branch update.
+	 *
+	 * @param walk
+	 * @param cmd
+	 * @return the commits, newest first
+	 * @throws IOException
+	 */
+	private List<RevCommit> walk(RevWalk walk, ReceiveCommand cmd) throws IOException {
+		List<RevCommit> list = new ArrayList<RevCommit>();
+		walk.reset();
+		walk.sort(RevSort.TOPO);
+		walk.markStart(walk.parseCommit(cmd.getNewId()));
+		walk.markUninteresting(walk.parseCommit(cmd.getOldId()));
+		for (;;) {
+			RevCommit c = walk.next();
+			if (c == null) {
+				break;
+			}
+			list.add(c);
 		}
 		return list;
 	}
-}
\ No newline at end of file
+}
@@ -15,29 +15,42 @@
  */
 package com.gitblit.plugin.hipchat;
 
-import java.io.ByteArrayOutputStream;
+import java.io.File;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.Serializable;
-import java.util.concurrent.Callable;
+import java.io.UnsupportedEncodingException;
+import java.lang.management.ManagementFactory;
+import java.net.URLEncoder;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CopyOnWriteArraySet;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
-import org.apache.http.HttpResponse;
-import org.apache.http.HttpStatus;
-import org.apache.http.client.HttpClient;
-import org.apache.http.client.methods.HttpPost;
-import org.apache.http.client.params.AllClientPNames;
-import org.apache.http.entity.StringEntity;
-import org.apache.http.impl.client.DefaultHttpClient;
-import org.apache.http.params.CoreProtocolPNames;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import com.gitblit.Constants;
 import com.gitblit.manager.IManager;
 import com.gitblit.manager.IRuntimeManager;
 import com.gitblit.models.RepositoryModel;
+import com.gitblit.models.UserModel;
+import com.gitblit.plugin.hipchat.ExecutorStrategy.NamedThreadFactory;
+import com.gitblit.plugin.hipchat.Payload.Color;
+import com.gitblit.plugin.hipchat.Payload.MessageFormat;
+import com.gitblit.plugin.hipchat.Payload.Priority;
 import com.gitblit.utils.StringUtils;
 import com.google.gson.Gson;
 import com.google.gson.GsonBuilder;
@@ -50,6 +63,31 @@ import com.google.gson.GsonBuilder;
  */
 public class HipChatter implements IManager {
 
+	static final String HIPCHAT_API = "https://api.hipchat.com/v2";
+
+	/**
+	 * What happens to a notification when the delivery queue is full.
+	 */
+	public static enum Overflow {
+		/** evict the oldest notification of the same or a lower priority */
+		drop_oldest,
+		/** drop the new notification */
+		reject,
+		/** write the new notification to the outbox */
+		outbox;
+
+		static Overflow fromString(String value) {
+			for (Overflow overflow : values()) {
+				if (overflow.name().equalsIgnoreCase(value)) {
+					return overflow;
+				}
+			}
+			return drop_oldest;
+		}
+	}
+
+	private static final String COALESCE_SEPARATOR = "<br/>";
+
 	private static HipChatter instance;
 
 	final Logger log = LoggerFactory.getLogger(getClass());
@@ -58,6 +96,62 @@ public class HipChatter implements IManager {
 
 	final ExecutorService taskPool;
 
+	final HipChatMetrics metrics;
+
+	final HttpEngine engine;
+
+	final ConcurrentMap<String, CircuitBreaker> breakers;
+
+	final Outbox outbox;
+
+	final ClusterLease cluster;
+
+	final Outbox inbox;
+
+	final AdaptiveLimiter limiter;
+
+	final DeliveryQueue queue;
+
+	final Pipeline live;
+
+	final Pipeline stub;
+
+	final Overflow overflow;
+
+	final int coalesceBacklog;
+
+	final int coalesceMax;
+
+	final DedupWindow dedup;
+
+	final MarkdownRenderer markdownRenderer;
+
+	final ThreadPoolExecutor ticketPool;
+
+	final BulkDetector bulk;
+
+	final EventRecorder recorder;
+
+	final ConcurrentMap<String, RefFilter> refFilters;
+
+	volatile boolean accepting;
+
+	final long [] timeToLive;
+
+	final Map<String, Expired> expired;
+
+	final ConcurrentMap<String, RoomStatus> roomStatus;
+
+	final Set<String> warnedRooms;
+
+	final List<DeliveryCallback> listeners;
+
+	final ConcurrentMap<String, TokenBucket> throttles;
+
+	final Map<String, Suppressed> suppressed;
+
+	final ScheduledExecutorService scheduler;
+
 	public static void init(IRuntimeManager manager) {
 		if (instance == null) {
 			instance = new HipChatter(manager);
@@ -70,32 +164,785 @@ public class HipChatter implements IManager {
 
 	HipChatter(IRuntimeManager runtimeManager) {
 		this.runtimeManager = runtimeManager;
-		this.taskPool = Executors.newCachedThreadPool();
+		this.taskPool = createTaskPool();
+		this.metrics = new HipChatMetrics();
+		this.engine = createEngine();
+		this.breakers = new ConcurrentHashMap<String, CircuitBreaker>();
+		if (runtimeManager.getSettings().getBoolean(Plugin.SETTING_CLUSTER_ENABLED, false)) {
+			// the nodes share the outbox, followers submit through the inbox
+			File folder = runtimeManager.getFileOrFolder(Plugin.SETTING_CLUSTER_FOLDER, "${baseFolder}/hipchat/cluster");
+			String node = runtimeManager.getSettings().getString(Plugin.SETTING_CLUSTER_NODE, "");
+			if (StringUtils.isEmpty(node)) {
+				node = ManagementFactory.getRuntimeMXBean().getName();
+			}
+			int leaseTime = Math.max(3, runtimeManager.getSettings().getInteger(Plugin.SETTING_CLUSTER_LEASE_TIME, 15));
+			this.cluster = new ClusterLease(folder, node, leaseTime * 1000L);
+			this.outbox = new Outbox(new File(folder, "outbox"), node);
+			this.inbox = new Outbox(new File(folder, "inbox"), node);
+		} else {
+			File folder = runtimeManager.getFileOrFolder(Plugin.SETTING_OUTBOX_FOLDER, "${baseFolder}/hipchat/outbox");
+			this.cluster = null;
+			this.outbox = new Outbox(folder);
+			this.inbox = null;
+		}
+		this.limiter = createLimiter();
+		this.queue = createQueue();
+		this.live = new Pipeline(metrics, limiter, queue, breakers);
+		this.stub = new Pipeline(new HipChatMetrics(), createLimiter(), createQueue(),
+				new ConcurrentHashMap<String, CircuitBreaker>());
+		this.overflow = Overflow.fromString(runtimeManager.getSettings().getString(Plugin.SETTING_QUEUE_OVERFLOW, null));
+		this.coalesceBacklog = runtimeManager.getSettings().getInteger(Plugin.SETTING_COALESCE_BACKLOG, 50);
+		this.coalesceMax = runtimeManager.getSettings().getInteger(Plugin.SETTING_COALESCE_MAX_MESSAGES, 20);
+		int dedupWindow = runtimeManager.getSettings().getInteger(Plugin.SETTING_DEDUP_WINDOW, 60);
+		this.dedup = dedupWindow > 0 ? new DedupWindow(dedupWindow * 1000L, 10000) : null;
+		this.refFilters = new ConcurrentHashMap<String, RefFilter>();
+		this.accepting = true;
+		this.timeToLive = new long[Priority.values().length];
+		timeToLive[Priority.high.ordinal()] = runtimeManager.getSettings().getInteger(Plugin.SETTING_TTL_HIGH, 0) * 1000L;
+		timeToLive[Priority.normal.ordinal()] = runtimeManager.getSettings().getInteger(Plugin.SETTING_TTL_NORMAL, 3600) * 1000L;
+		timeToLive[Priority.low.ordinal()] = runtimeManager.getSettings().getInteger(Plugin.SETTING_TTL_LOW, 900) * 1000L;
+		this.expired = new HashMap<String, Expired>();
+		this.markdownRenderer = new MarkdownRenderer(runtimeManager.getSettings().getInteger(Plugin.SETTING_MARKDOWN_THREADS, 2),
+				runtimeManager.getSettings().getInteger(Plugin.SETTING_MARKDOWN_MAX_LENGTH, 5000));
+		int ticketThreads = Math.max(1, runtimeManager.getSettings().getInteger(Plugin.SETTING_TICKET_THREADS, 2));
+		int ticketQueue = Math.max(1, runtimeManager.getSettings().getInteger(Plugin.SETTING_TICKET_QUEUE, 1000));
+		this.ticketPool = new ThreadPoolExecutor(ticketThreads, ticketThreads, 60L, TimeUnit.SECONDS,
+				new ArrayBlockingQueue<Runnable>(ticketQueue), new NamedThreadFactory("HipChat-ticket"));
+		this.ticketPool.allowCoreThreadTimeOut(true);
+		this.bulk = new BulkDetector(runtimeManager.getSettings().getInteger(Plugin.SETTING_BULK_THRESHOLD, 30),
+				Math.max(10, runtimeManager.getSettings().getInteger(Plugin.SETTING_BULK_WINDOW, 60)) * 1000L);
+		if (runtimeManager.getSettings().getBoolean(Plugin.SETTING_RECORDER_ENABLED, false)) {
+			File folder = getRecordingFolder();
+			log.info("HipChat hook events will be recorded to {}", folder);
+			this.recorder = new EventRecorder(folder,
+					runtimeManager.getSettings().getFilesize(Plugin.SETTING_RECORDER_MAX_SIZE, 64 * 1024 * 1024L),
+					runtimeManager.getSettings().getInteger(Plugin.SETTING_RECORDER_FILES, 4),
+					runtimeManager.getSettings().getBoolean(Plugin.SETTING_RECORDER_ANONYMIZE, true));
+		} else {
+			this.recorder = null;
+		}
+		this.roomStatus = new ConcurrentHashMap<String, RoomStatus>();
+		this.warnedRooms = new CopyOnWriteArraySet<String>();
+		this.listeners = new CopyOnWriteArrayList<DeliveryCallback>();
+		this.throttles = new ConcurrentHashMap<String, TokenBucket>();
+		this.suppressed = new LinkedHashMap<String, Suppressed>();
+		this.scheduler = Executors.newSingleThreadScheduledExecutor(new NamedThreadFactory("HipChat-scheduler"));
+	}
+
+	protected AdaptiveLimiter createLimiter() {
+		int initial = runtimeManager.getSettings().getInteger(Plugin.SETTING_LIMIT_INITIAL, 10);
+		int min = runtimeManager.getSettings().getInteger(Plugin.SETTING_LIMIT_MIN, 1);
+		int max = runtimeManager.getSettings().getInteger(Plugin.SETTING_LIMIT_MAX, 50);
+		int latency = runtimeManager.getSettings().getInteger(Plugin.SETTING_LIMIT_LATENCY, 1000);
+		return new AdaptiveLimiter(initial, min, max, latency);
+	}
+
+	protected DeliveryQueue createQueue() {
+		return new DeliveryQueue(
+				runtimeManager.getSettings().getInteger(Plugin.SETTING_WEIGHT_HIGH, 8),
+				runtimeManager.getSettings().getInteger(Plugin.SETTING_WEIGHT_NORMAL, 4),
+				runtimeManager.getSettings().getInteger(Plugin.SETTING_WEIGHT_LOW, 1),
+				runtimeManager.getSettings().getInteger(Plugin.SETTING_QUEUE_MAX_COUNT, 10000),
+				runtimeManager.getSettings().getFilesize(Plugin.SETTING_QUEUE_MAX_SIZE, 16 * 1024 * 1024L));
+	}
+
+	protected ExecutorService createTaskPool() {
+		String value = runtimeManager.getSettings().getString(Plugin.SETTING_EXECUTOR, ExecutorStrategy.cached.name());
+		int poolSize = runtimeManager.getSettings().getInteger(Plugin.SETTING_POOL_SIZE,
+				Runtime.getRuntime().availableProcessors() * 2);
+		ExecutorStrategy strategy = ExecutorStrategy.fromString(value);
+		log.info("HipChat tasks will be executed by a {} executor", strategy.isSupported() ? strategy : ExecutorStrategy.fixed);
+		return strategy.create(poolSize);
+	}
+
+	protected HttpEngine createEngine() {
+		String value = runtimeManager.getSettings().getString(Plugin.SETTING_HTTP_ENGINE, HttpEngine.Type.blocking.name());
+		HttpEngine.Type type = HttpEngine.Type.fromString(value);
+		int maxConnections = runtimeManager.getSettings().getInteger(Plugin.SETTING_MAX_CONNECTIONS, 20);
+		switch (type) {
+		case async:
+			int ioThreads = runtimeManager.getSettings().getInteger(Plugin.SETTING_IO_THREADS, 2);
+			log.info("HipChat notifications will be posted by an async engine ({} I/O threads, {} connections)",
+					ioThreads, maxConnections);
+			return new AsyncHttpEngine(Math.max(1, ioThreads), Math.max(1, maxConnections));
+		default:
+			return new BlockingHttpEngine(taskPool, Math.max(1, maxConnections));
+		}
+	}
+
+	/**
+	 * Returns the maximum length of a message, which never exceeds the
+	 * HipChat limit.
+	 *
+	 * @return the maximum message length
+	 */
+	public int getMaxMessageLength() {
+		int maxLength = runtimeManager.getSettings().getInteger(Plugin.SETTING_MAX_MESSAGE_LENGTH, MessageTruncator.HIPCHAT_MAX_LENGTH);
+		return Math.max(100, Math.min(MessageTruncator.HIPCHAT_MAX_LENGTH, maxLength));
+	}
+
+	/**
+	 * Returns the base url of the HipChat API, e.g. of a HipChat Server.
+	 *
+	 * @return the API url
+	 */
+	public String getApiUrl() {
+		String url = runtimeManager.getSettings().getString(Plugin.SETTING_API_URL, HIPCHAT_API);
+		if (StringUtils.isEmpty(url)) {
+			return HIPCHAT_API;
+		}
+		return url.endsWith("/") ? url.substring(0, url.length() - 1) : url;
+	}
+
+	public MarkdownRenderer getMarkdownRenderer() {
+		return markdownRenderer;
+	}
+
+	/**
+	 * Runs the enrichment and rendering of a hook event on the bounded ticket
+	 * pool, so the thread which raised the event is not slowed down.  If the
+	 * pool is saturated the event is dropped.
+	 *
+	 * @param task
+	 * @return true if the task was accepted
+	 */
+	public boolean renderAsync(Runnable task) {
+		try {
+			ticketPool.execute(task);
+			return true;
+		} catch (RejectedExecutionException e) {
+			metrics.overflowed();
+			log.warn("HipChat ticket renderers are saturated, dropped notification");
+			return false;
+		}
+	}
+
+	/**
+	 * Returns a new rendering deadline for a hook event.
+	 *
+	 * @return a rendering deadline
+	 */
+	public RenderDeadline newRenderDeadline() {
+		int timeout = runtimeManager.getSettings().getInteger(Plugin.SETTING_MARKDOWN_TIMEOUT, 2000);
+		return new RenderDeadline(timeout);
+	}
+
+	/**
+	 * Registers a callback which is notified after each asynchronous
+	 * delivery completes or fails.
+	 *
+	 * @param listener
+	 */
+	public void addListener(DeliveryCallback listener) {
+		listeners.add(listener);
+	}
+
+	public void removeListener(DeliveryCallback listener) {
+		listeners.remove(listener);
+	}
+
+	public HipChatMetrics getMetrics() {
+		return metrics;
+	}
+
+	/**
+	 * Returns the metrics of the deliveries to stub endpoints, which are
+	 * kept apart from the metrics of the real rooms.
+	 *
+	 * @return the stub metrics
+	 */
+	public HipChatMetrics getStubMetrics() {
+		return stub.metrics;
+	}
+
+	public AdaptiveLimiter getLimiter() {
+		return limiter;
+	}
+
+	public DeliveryQueue getQueue() {
+		return queue;
+	}
+
+	public Outbox getOutbox() {
+		return outbox;
+	}
+
+	/**
+	 * Returns the circuit breakers of the rooms which have been posted to.
+	 *
+	 * @return the circuit breakers
+	 */
+	public List<CircuitBreaker> getBreakers() {
+		return new ArrayList<CircuitBreaker>(breakers.values());
+	}
+
+	/**
+	 * Returns the circuit breaker for a resolved room.
+	 *
+	 * @param room
+	 * @return the circuit breaker
+	 */
+	protected CircuitBreaker getBreaker(String room) {
+		return getBreaker(live, room);
+	}
+
+	/**
+	 * Returns the circuit breaker for a resolved room of a pipeline.
+	 *
+	 * @param pipeline
+	 * @param room
+	 * @return the circuit breaker
+	 */
+	protected CircuitBreaker getBreaker(Pipeline pipeline, String room) {
+		String key = room == null ? "" : room;
+		CircuitBreaker breaker = pipeline.breakers.get(key);
+		if (breaker == null) {
+			int failures = runtimeManager.getSettings().getInteger(Plugin.SETTING_BREAKER_FAILURES, 5);
+			int interval = runtimeManager.getSettings().getInteger(Plugin.SETTING_BREAKER_INTERVAL, 30);
+			breaker = new CircuitBreaker(key, failures, interval * 1000L);
+			CircuitBreaker existing = pipeline.breakers.putIfAbsent(key, breaker);
+			if (existing != null) {
+				breaker = existing;
+			}
+		}
+		return breaker;
+	}
+
+	/**
+	 * Returns the pipeline of a delivery.  Deliveries to a stub endpoint
+	 * have a queue, limiter, breakers and metrics of their own, so a
+	 * benchmark runs through the same queue and dispatch code as the
+	 * notifications of the real rooms without affecting them.
+	 *
+	 * @param delivery
+	 * @return the pipeline
+	 */
+	protected Pipeline pipeline(Delivery delivery) {
+		return delivery.payload.getEndpoint() == null ? live : stub;
+	}
+
+	/**
+	 * Returns the configured rooms and their API tokens, starting with the
+	 * default room.
+	 *
+	 * @return a map of room to token
+	 */
+	public Map<String, String> getConfiguredRooms() {
+		Map<String, String> rooms = new LinkedHashMap<String, String>();
+		String defaultRoom = runtimeManager.getSettings().getString(Plugin.SETTING_DEFAULT_ROOM, null);
+		String defaultToken = runtimeManager.getSettings().getString(Plugin.SETTING_DEFAULT_TOKEN, null);
+		if (!StringUtils.isEmpty(defaultRoom)) {
+			rooms.put(defaultRoom, defaultToken);
+		}
+		// hipchat.ROOM.token
+		String prefix = "hipchat.";
+		String suffix = ".token";
+		for (String key : runtimeManager.getSettings().getAllKeys(prefix)) {
+			if (key.endsWith(suffix) && key.length() > prefix.length() + suffix.length()) {
+				String room = key.substring(prefix.length(), key.length() - suffix.length());
+				String token = runtimeManager.getSettings().getString(key, null);
+				if (!rooms.containsKey(room)) {
+					rooms.put(room, token);
+				}
+			}
+		}
+		return rooms;
+	}
+
+	/**
+	 * Returns the cached token status of the configured rooms.
+	 *
+	 * @return the room status keyed by room
+	 */
+	public Map<String, RoomStatus> getRoomStatus() {
+		return new HashMap<String, RoomStatus>(roomStatus);
+	}
+
+	/**
+	 * Validates the API token of each configured room in the background.
+	 * Each room is looked up concurrently on the task pool, which also opens
+	 * pooled connections to HipChat before the first notification is sent.
+	 */
+	public void validateTokens() {
+		for (final String room : getConfiguredRooms().keySet()) {
+			roomStatus.put(room, new RoomStatus(room, RoomStatus.State.unchecked, null));
+			taskPool.submit(new Runnable() {
+				@Override
+				public void run() {
+					validateToken(room);
+				}
+			});
+		}
+	}
+
+	/**
+	 * Looks up a configured room with its API token and caches the result.
+	 *
+	 * @param room
+	 * @return the room status
+	 */
+	public RoomStatus validateToken(String room) {
+		RoomStatus status;
+		String token = getConfiguredRooms().get(room);
+		if (StringUtils.isEmpty(token)) {
+			log.warn("No HipChat API token specified for '{}'", room);
+			status = new RoomStatus(room, RoomStatus.State.unauthorized, "no token");
+		} else {
+			String url = String.format("%s/room/%s?auth_token=%s", getApiUrl(), encode(room), encode(token));
+			try {
+				int rc = engine.get(url);
+				status = new RoomStatus(room, RoomStatus.State.fromStatus(rc), "HTTP " + rc);
+				if (status.isUsable()) {
+					log.debug("HipChat API token for '{}' is {}", room, status.getState());
+				} else {
+					log.warn("HipChat API token for '{}' is {} ({})", room, status.getState(), rc);
+				}
+			} catch (IOException e) {
+				log.warn("Failed to validate the HipChat API token for '{}': {}", room, e.getMessage());
+				status = new RoomStatus(room, RoomStatus.State.error, e.getMessage());
+			}
+		}
+		roomStatus.put(room, status);
+		return status;
 	}
 
 	@Override
 	public HipChatter start() {
+		// report suppressed pushes periodically
+		int interval = runtimeManager.getSettings().getInteger(Plugin.SETTING_THROTTLE_SUMMARY_INTERVAL, 600);
+		scheduler.scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					flushSuppressed();
+				} catch (Exception e) {
+					log.error("Failed to report suppressed HipChat notifications", e);
+				}
+			}
+		}, interval, Math.max(10, interval), TimeUnit.SECONDS);
+
+		// report bulk ticket imports once per window
+		long window = bulk.window / 1000;
+		scheduler.scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					flushBulk();
+				} catch (Exception e) {
+					log.error("Failed to report HipChat bulk ticket imports", e);
+				}
+			}
+		}, window, window, TimeUnit.SECONDS);
+
+		// catch misconfigured rooms and open connections before the first event
+		if (runtimeManager.getSettings().getBoolean(Plugin.SETTING_VALIDATE_TOKENS, true)) {
+			validateTokens();
+		}
+
+		// probe open breakers and deliver the outbox without waiting for a new event
+		int breakerInterval = Math.max(1, runtimeManager.getSettings().getInteger(Plugin.SETTING_BREAKER_INTERVAL, 30));
+		scheduler.scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					recover();
+				} catch (Exception e) {
+					log.error("Failed to recover HipChat deliveries", e);
+				}
+			}
+		}, breakerInterval, breakerInterval, TimeUnit.SECONDS);
+
+		if (cluster != null) {
+			// the elected node replays the shared outbox and drains the inbox
+			scheduler.scheduleWithFixedDelay(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						coordinate();
+					} catch (Exception e) {
+						log.error("Failed to coordinate the HipChat cluster", e);
+					}
+				}
+			}, 0, 1, TimeUnit.SECONDS);
+		} else if (outbox.size() > 0) {
+			// deliver the notifications persisted by the previous shutdown
+			replay(null);
+		}
 		return this;
 	}
 
+	/**
+	 * Returns the hook event recorder.
+	 *
+	 * @return the recorder, or null if recording is disabled
+	 */
+	public EventRecorder getRecorder() {
+		return recorder;
+	}
+
+	public File getRecordingFolder() {
+		return runtimeManager.getFileOrFolder(Plugin.SETTING_RECORDER_FOLDER, "${baseFolder}/hipchat/recordings");
+	}
+
+	public ClusterLease getCluster() {
+		return cluster;
+	}
+
+	public Outbox getInbox() {
+		return inbox;
+	}
+
+	/**
+	 * Renews or competes for the cluster lease.  A newly elected node replays
+	 * the shared outbox, and the leader queues the notifications which the
+	 * other nodes submitted to the inbox.
+	 */
+	protected void coordinate() {
+		boolean wasLeader = cluster.isLeader();
+		boolean leader;
+		if (wasLeader && System.currentTimeMillis() < cluster.getExpires() - cluster.leaseTime * 2 / 3) {
+			// renew after a third of the lease
+			leader = true;
+		} else {
+			leader = cluster.renew();
+		}
+
+		if (leader && !wasLeader) {
+			log.info("HipChat node {} was elected to post for the cluster", cluster.getNode());
+			replay(null);
+		} else if (!leader && wasLeader) {
+			log.warn("HipChat node {} lost the cluster lease to {}", cluster.getNode(), cluster.getHolder());
+		}
+
+		if (leader && accepting) {
+			for (Payload payload : inbox.drain(null)) {
+				// nodes may submit the same mirrored or replayed event
+				enqueue(payload, true);
+			}
+		}
+	}
+
+	/**
+	 * Resumes delivery when no new event arrives.  Queued deliveries are
+	 * dispatched, an open breaker which has waited out its interval is probed
+	 * with the oldest outbox payload of its room, and once all breakers are
+	 * closed the rest of the outbox is replayed.  On a cluster only the
+	 * elected node touches the shared outbox.
+	 */
+	protected void recover() {
+		dispatch(live);
+		dispatch(stub);
+		if (cluster != null && !cluster.isLeader()) {
+			return;
+		}
+		boolean open = false;
+		long now = System.currentTimeMillis();
+		for (CircuitBreaker breaker : live.breakers.values()) {
+			CircuitBreaker.State state = breaker.getState();
+			if (state == CircuitBreaker.State.closed) {
+				continue;
+			}
+			open = true;
+			if (state == CircuitBreaker.State.open && now - breaker.getOpenedAt() >= breaker.openInterval) {
+				// the probe closes the breaker and replays the rest of the room
+				replay(breaker.getRoom(), 1);
+			}
+		}
+		if (!open && outbox.size() > 0) {
+			replay(null);
+		}
+	}
+
 	@Override
 	public HipChatter stop() {
+		int timeout = runtimeManager.getSettings().getInteger(Plugin.SETTING_SHUTDOWN_TIMEOUT, 10);
+		long deadline = System.currentTimeMillis() + timeout * 1000L;
+
+		scheduler.shutdownNow();
+		flushSuppressed();
+		flushBulk();
+
+		// let the pending ticket events render into the queue
+		ticketPool.shutdown();
+		try {
+			ticketPool.awaitTermination(Math.max(0, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+
+		// stop accepting new notifications, they are persisted from now on
+		accepting = false;
+
+		// drain the queue until it is empty or the deadline is reached
+		long completed = metrics.getDelivered() + metrics.getFailed();
+		while ((queue.size() > 0 || !live.inFlight.isEmpty()) && System.currentTimeMillis() < deadline) {
+			dispatch(live);
+			try {
+				Thread.sleep(100);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				break;
+			}
+		}
+		long drained = metrics.getDelivered() + metrics.getFailed() - completed;
+
+		// persist whatever is still queued or unanswered for the next start,
+		// a response which arrives later is ignored
+		int persisted = 0;
+		int lost = 0;
+		for (Delivery delivery : stub.inFlight) {
+			if (stub.inFlight.remove(delivery)) {
+				dropped(delivery, "HipChat is shutting down");
+			}
+		}
+		Delivery delivery;
+		while ((delivery = stub.queue.poll()) != null) {
+			dropped(delivery, "HipChat is shutting down");
+		}
+		List<Delivery> unresolved = new ArrayList<Delivery>();
+		for (Delivery inFlight : live.inFlight) {
+			if (live.inFlight.remove(inFlight)) {
+				unresolved.add(inFlight);
+			}
+		}
+		while ((delivery = queue.poll()) != null) {
+			unresolved.add(delivery);
+		}
+		for (Delivery pending : unresolved) {
+			if (outbox.offer(pending)) {
+				persisted++;
+			} else {
+				lost++;
+			}
+			dropped(pending, "HipChat is shutting down");
+		}
+
 		this.taskPool.shutdown();
+		this.ticketPool.shutdownNow();
+		this.engine.close();
+		this.markdownRenderer.close();
+
+		if (recorder != null) {
+			recorder.close();
+		}
+
+		if (cluster != null) {
+			// let another node take over right away
+			cluster.release();
+		}
+
+		log.info("HipChat stopped: {} notifications drained, {} persisted, {} lost", drained, persisted, lost);
 		return this;
 	}
 
 	/**
-	 * Returns true if the repository can be posted to HipChat.
+	 * Returns true if the repository can be posted to HipChat.
+	 *
+	 * @param repository
+	 * @return true if the repository can be posted to HipChat
+	 */
+	public boolean shallPost(RepositoryModel repository) {
+		boolean postPersonalRepos = runtimeManager.getSettings().getBoolean(Plugin.SETTING_POST_PERSONAL_REPOS, false);
+		if (repository.isPersonalRepository() && !postPersonalRepos) {
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Takes a token from the throttles of the pusher and of the repository.
+	 * A push which exceeds either throttle is counted and reported by a
+	 * periodic summary instead of being posted.
+	 *
+	 * @param repository
+	 * @param user
+	 * @return true if the push may be posted
+	 */
+	public boolean acquirePush(RepositoryModel repository, UserModel user) {
+		int pusherLimit = runtimeManager.getSettings().getInteger(Plugin.SETTING_THROTTLE_PUSHER, 0);
+		int repositoryLimit = runtimeManager.getSettings().getInteger(Plugin.SETTING_THROTTLE_REPOSITORY, 0);
+		if (pusherLimit <= 0 && repositoryLimit <= 0) {
+			return true;
+		}
+
+		String name = StringUtils.stripDotGit(repository.name);
+		TokenBucket pusher = pusherLimit <= 0 ? null : getThrottle("pusher:" + user.username, pusherLimit);
+		TokenBucket repo = repositoryLimit <= 0 ? null : getThrottle("repository:" + name, repositoryLimit);
+		if (pusher == null || pusher.tryAcquire()) {
+			if (repo == null || repo.tryAcquire()) {
+				return true;
+			}
+			if (pusher != null) {
+				// the push is not posted, do not charge the pusher
+				pusher.refund();
+			}
+		}
+
+		metrics.suppressed();
+		log.debug("Suppressed HipChat notification of push by {} to {}", user.username, name);
+		synchronized (suppressed) {
+			String key = name + "|" + user.username;
+			Suppressed entry = suppressed.get(key);
+			if (entry == null) {
+				entry = new Suppressed(repository, user.getDisplayName());
+				suppressed.put(key, entry);
+			}
+			entry.count++;
+		}
+		return false;
+	}
+
+	private TokenBucket getThrottle(String key, int perHour) {
+		TokenBucket bucket = throttles.get(key);
+		if (bucket == null) {
+			int burst = runtimeManager.getSettings().getInteger(Plugin.SETTING_THROTTLE_BURST, 10);
+			bucket = new TokenBucket(burst, perHour);
+			TokenBucket existing = throttles.putIfAbsent(key, bucket);
+			if (existing != null) {
+				bucket = existing;
+			}
+		}
+		return bucket;
+	}
+
+	/**
+	 * Posts one "N more pushes by X suppressed" message for each pusher and
+	 * repository which exceeded a throttle since the last summary.
+	 */
+	protected void flushSuppressed() {
+		List<Suppressed> list;
+		synchronized (suppressed) {
+			list = new ArrayList<Suppressed>(suppressed.values());
+			suppressed.clear();
+		}
+		for (Suppressed entry : list) {
+			String msg = String.format("%d more %s by <b>%s</b> to %s suppressed",
+					entry.count, entry.count == 1 ? "push" : "pushes",
+					StringUtils.escapeForHtml(entry.pusher, false),
+					StringUtils.escapeForHtml(StringUtils.stripDotGit(entry.repository.name), false));
+			Payload payload = Payload.html(msg).color(Color.gray).priority(Priority.low);
+			setRoom(entry.repository, payload);
+			sendAsync(payload);
+		}
+
+		// forget the throttles which have refilled
+		for (Map.Entry<String, TokenBucket> entry : throttles.entrySet()) {
+			if (entry.getValue().isFull()) {
+				throttles.remove(entry.getKey(), entry.getValue());
+			}
+		}
+	}
+
+	public BulkDetector getBulkDetector() {
+		return bulk;
+	}
+
+	/**
+	 * Switches bulk mode on or off and posts the final summary of each import
+	 * which was ended by switching it off.
+	 *
+	 * @param repository a repository name or {@link BulkDetector#ALL}
+	 * @param on
+	 */
+	public void setBulkMode(String repository, boolean on) {
+		for (BulkDetector.Bulk entry : bulk.setManual(repository, on)) {
+			postBulk(entry);
+		}
+	}
+
+	/**
+	 * Posts one progress summary for each bulk ticket import with new events
+	 * and a final summary for each import which has finished.
+	 */
+	protected void flushBulk() {
+		for (BulkDetector.Bulk entry : bulk.progress()) {
+			postBulk(entry);
+		}
+	}
+
+	private void postBulk(BulkDetector.Bulk entry) {
+		String name = StringUtils.escapeForHtml(StringUtils.stripDotGit(entry.getRepository().name), false);
+		String msg = String.format("Bulk ticket import in <b>%s</b> %s: %d %s created, %d %s updated",
+				name, entry.isFinished() ? "finished" : "in progress",
+				entry.getCreated(), entry.getCreated() == 1 ? "ticket" : "tickets",
+				entry.getUpdated(), entry.getUpdated() == 1 ? "ticket" : "tickets");
+		Payload payload = Payload.html(msg).color(Color.gray).priority(Priority.low);
+		setRoom(entry.getRepository(), payload);
+		sendAsync(payload);
+	}
+
+	/**
+	 * Returns the compiled ref and pusher rules for the repository.
+	 *
+	 * Repository rules are read from hipchat.REPOSITORY.* (without .git) and
+	 * fall back to the global hipchat.* rules.  Compiled filters are cached by their rule text
+	 * so settings changes take effect without recompiling on every push.
+	 *
+	 * @param repository
+	 * @return the ref filter
+	 */
+	public RefFilter getRefFilter(RepositoryModel repository) {
+		String name = StringUtils.stripDotGit(repository.name);
+		String includeRefs = getRepositorySetting(name, Plugin.SETTING_INCLUDE_REFS);
+		String excludeRefs = getRepositorySetting(name, Plugin.SETTING_EXCLUDE_REFS);
+		String excludePushers = getRepositorySetting(name, Plugin.SETTING_EXCLUDE_PUSHERS);
+		String minCommits = getRepositorySetting(name, Plugin.SETTING_MIN_COMMITS);
+		boolean postBranches = runtimeManager.getSettings().getBoolean(Plugin.SETTING_POST_BRANCHES, true);
+		boolean postTags = runtimeManager.getSettings().getBoolean(Plugin.SETTING_POST_TAGS, true);
+
+		String key = postBranches + "|" + postTags + "|" + includeRefs + "|" + excludeRefs + "|" + excludePushers + "|" + minCommits;
+		RefFilter filter = refFilters.get(key);
+		if (filter == null) {
+			int min = 0;
+			try {
+				min = StringUtils.isEmpty(minCommits) ? 0 : Integer.parseInt(minCommits);
+			} catch (NumberFormatException e) {
+				log.warn("Invalid HipChat commit threshold '{}' for {}", minCommits, name);
+			}
+			filter = new RefFilter(postBranches, postTags,
+					StringUtils.getStringsFromValue(includeRefs, " "),
+					StringUtils.getStringsFromValue(excludeRefs, " "),
+					StringUtils.getStringsFromValue(excludePushers, " "),
+					min);
+			if (refFilters.size() > 1000) {
+				refFilters.clear();
+			}
+			refFilters.put(key, filter);
+		}
+		return filter;
+	}
+
+	/**
+	 * Returns the repository value of a hipchat.* setting, e.g.
+	 * hipchat.myrepo.excludeRefs for hipchat.excludeRefs, or the global value.
+	 *
+	 * @param repository
+	 * @param key
+	 * @return the setting value
+	 */
+	private String getRepositorySetting(String repository, String key) {
+		String global = runtimeManager.getSettings().getString(key, "");
+		String repositoryKey = "hipchat." + repository + key.substring(key.indexOf('.'));
+		return runtimeManager.getSettings().getString(repositoryKey, global).trim();
+	}
+
+	/**
+	 * Returns the share of the delivery queue of a repository, read from
+	 * hipchat.REPOSITORY.weight (without .git) or from hipchat.PROJECT.weight.
 	 *
 	 * @param repository
-	 * @return true if the repository can be posted to HipChat
+	 * @return the weight of the repository, 1 by default
 	 */
-	public boolean shallPost(RepositoryModel repository) {
-		boolean postPersonalRepos = runtimeManager.getSettings().getBoolean(Plugin.SETTING_POST_PERSONAL_REPOS, false);
-		if (repository.isPersonalRepository() && !postPersonalRepos) {
-			return false;
+	protected int getRepositoryWeight(String repository) {
+		if (StringUtils.isEmpty(repository)) {
+			return 1;
 		}
-		return true;
+		int weight = runtimeManager.getSettings().getInteger(String.format(Plugin.SETTING_REPOSITORY_WEIGHT, repository), 0);
+		if (weight <= 0 && repository.indexOf('/') > -1) {
+			String project = repository.substring(0, repository.lastIndexOf('/'));
+			weight = runtimeManager.getSettings().getInteger(String.format(Plugin.SETTING_REPOSITORY_WEIGHT, project), 0);
+		}
+		return Math.max(1, weight);
 	}
 
 	/**
@@ -105,6 +952,8 @@ public class HipChatter implements IManager {
 	 * @param payload
 	 */
 	public void setRoom(RepositoryModel repository, Payload payload) {
+		addRoutes(repository, payload);
+
 		boolean useProjectChannels = runtimeManager.getSettings().getBoolean(Plugin.SETTING_USE_PROJECT_ROOMS, false);
 		if (!useProjectChannels) {
 			return;
@@ -122,6 +971,26 @@ public class HipChatter implements IManager {
 		}
 	}
 
+	/**
+	 * Adds the additional rooms which are routed events of the repository,
+	 * e.g. a central audit room.
+	 *
+	 * @param repository
+	 * @param payload
+	 */
+	public void addRoutes(RepositoryModel repository, Payload payload) {
+		if (repository == null) {
+			return;
+		}
+		payload.setRepository(StringUtils.stripDotGit(repository.name));
+		String rooms = getRepositorySetting(StringUtils.stripDotGit(repository.name), Plugin.SETTING_ADDITIONAL_ROOMS);
+		for (String room : StringUtils.getStringsFromValue(rooms, " ")) {
+			if (!room.isEmpty()) {
+				payload.addRoom(room);
+			}
+		}
+	}
+
 	/**
 	 * Asynchronously send a simple text message.
 	 *
@@ -133,13 +1002,233 @@ public class HipChatter implements IManager {
 	}
 
 	/**
-	 * Asynchronously send a payload message.
+	 * Asynchronously send a payload message to its room and to each of its
+	 * additional rooms.  Every delivery is reported to the listeners once:
+	 * as completed when it was posted or forwarded to the elected node of
+	 * the cluster, as failed when it was dropped or kept in the outbox.
 	 *
 	 * @param payload
-	 * @throws IOException
+	 * @return the number of deliveries, one for each distinct room
+	 */
+	public int sendAsync(final Payload payload) {
+		return enqueue(payload, true);
+	}
+
+	/**
+	 * Queues the deliveries of a payload.
+	 *
+	 * @param payload
+	 * @param deduplicate false for payloads replayed from the outbox, which
+	 *        already passed the dedup window.  Explicit payloads are never
+	 *        deduplicated.
+	 * @return the number of deliveries
+	 */
+	protected int enqueue(Payload payload, boolean deduplicate) {
+		if (cluster != null && !cluster.isLeader() && payload.getEndpoint() == null) {
+			// the elected node posts for the cluster
+			List<Delivery> deliveries = prepareAll(payload);
+			for (Delivery delivery : deliveries) {
+				if (inbox.offer(delivery)) {
+					forwarded(delivery);
+				} else {
+					log.warn("Failed to submit HipChat notification for '{}' to the cluster", delivery.room);
+					dropped(delivery, "failed to submit to the cluster");
+				}
+			}
+			return deliveries.size();
+		}
+		if (!accepting) {
+			// shutting down, keep the notification for the next start
+			List<Delivery> deliveries = prepareAll(payload);
+			for (Delivery delivery : deliveries) {
+				outbox.offer(delivery);
+				dropped(delivery, "HipChat is shutting down");
+			}
+			return deliveries.size();
+		}
+		Pipeline pipeline = payload.getEndpoint() == null ? live : stub;
+		Map<String, String> rooms = getRooms(payload);
+		int count = rooms.size();
+		if (deduplicate && !payload.isExplicit() && dedup != null) {
+			// check the message before it is truncated and serialized
+			Iterator<Map.Entry<String, String>> iterator = rooms.entrySet().iterator();
+			while (iterator.hasNext()) {
+				Map.Entry<String, String> room = iterator.next();
+				if (dedup.isDuplicate(Delivery.getKey(payload.getEndpoint(), room.getKey()), payload.getMessage())) {
+					iterator.remove();
+					pipeline.metrics.deduplicated();
+					log.debug("Dropped duplicate HipChat notification for '{}'", room.getKey());
+					if (!listeners.isEmpty()) {
+						dropped(new Delivery(payload.copy(), room.getValue(), room.getKey(), "", new byte[0]),
+								"duplicate notification");
+					}
+				}
+			}
+			if (rooms.isEmpty()) {
+				return count;
+			}
+		}
+		for (Delivery delivery : prepareAll(payload, rooms)) {
+			offer(delivery);
+		}
+		dispatch(pipeline);
+		return count;
+	}
+
+	/**
+	 * Queues a delivery, applying the overflow action if the queue is full.
+	 *
+	 * @param delivery
+	 */
+	protected void offer(Delivery delivery) {
+		Pipeline pipeline = pipeline(delivery);
+		int weight = getRepositoryWeight(delivery.payload.getRepository());
+		while (!pipeline.queue.offer(delivery, weight)) {
+			pipeline.metrics.overflowed();
+			switch (overflow) {
+			case outbox:
+				if (!outbox.offer(delivery)) {
+					log.warn("HipChat queue is full, dropped notification for '{}'", delivery.room);
+				}
+				dropped(delivery, "HipChat queue is full");
+				return;
+			case drop_oldest:
+				Delivery evicted = pipeline.queue.evict(delivery.payload.getPriority());
+				if (evicted != null) {
+					log.warn("HipChat queue is full, dropped oldest notification for '{}'", evicted.room);
+					dropped(evicted, "HipChat queue is full");
+					continue;
+				}
+				// only more urgent notifications are queued
+				log.warn("HipChat queue is full, dropped notification for '{}'", delivery.room);
+				dropped(delivery, "HipChat queue is full");
+				return;
+			default:
+				log.warn("HipChat queue is full, dropped notification for '{}'", delivery.room);
+				dropped(delivery, "HipChat queue is full");
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Posts queued deliveries while the adaptive limit allows more requests
+	 * in flight.  This is called whenever a delivery is queued and whenever a
+	 * request completes.
+	 *
+	 * @param pipeline
+	 */
+	protected void dispatch(Pipeline pipeline) {
+		while (pipeline.limiter.tryAcquire()) {
+			// the permit is returned by the callback once the delivery is posted
+			boolean posted = false;
+			Delivery delivery = null;
+			try {
+				delivery = pipeline.queue.poll();
+				if (delivery == null) {
+					if (flushExpired()) {
+						// expiry summaries were queued
+						continue;
+					}
+					return;
+				}
+				if (isExpired(delivery)) {
+					expire(delivery);
+					continue;
+				}
+				delivery = coalesce(pipeline, delivery);
+				if (!getBreaker(pipeline, delivery.room).allowRequest()) {
+					shed(delivery);
+					continue;
+				}
+				pipeline.metrics.submitted();
+				pipeline.inFlight.add(delivery);
+				engine.postAsync(delivery, pipeline.callback);
+				posted = true;
+			} catch (RuntimeException e) {
+				log.error("Failed to dispatch HipChat notification " + delivery, e);
+				if (delivery != null) {
+					pipeline.inFlight.remove(delivery);
+					dropped(delivery, "failed to dispatch: " + e);
+				}
+			} finally {
+				if (!posted) {
+					pipeline.limiter.cancel();
+				}
+			}
+		}
+	}
+
+	/**
+	 * Merges the queued deliveries for the same room and of the same priority
+	 * into the delivery while the queue is backed up, so a backlog costs
+	 * fewer requests.  The combined html message never exceeds the maximum
+	 * message length.  When the queue is short the delivery is returned as is.
+	 *
+	 * @param pipeline
+	 * @param delivery
+	 * @return the delivery or a combined delivery
 	 */
-	public void sendAsync(final Payload payload) {
-		taskPool.submit(new HipChatterTask(this, payload));
+	protected Delivery coalesce(Pipeline pipeline, Delivery delivery) {
+		if (coalesceBacklog <= 0 || coalesceMax <= 1 || pipeline.queue.size() < coalesceBacklog) {
+			return delivery;
+		}
+		List<Delivery> candidates = pipeline.queue.peekSimilar(delivery, coalesceMax - 1, 1000);
+		if (candidates.isEmpty()) {
+			return delivery;
+		}
+
+		Gson gson = new Gson();
+		Payload first = gson.fromJson(delivery.getBody(), Payload.class);
+		StringBuilder sb = new StringBuilder(toHtml(first));
+		Color color = first.getColor();
+		boolean notify = first.notify;
+		int maxLength = getMaxMessageLength();
+		List<Delivery> parts = new ArrayList<Delivery>();
+		parts.add(delivery);
+		for (Delivery candidate : candidates) {
+			if (isExpired(candidate)) {
+				// left for the expiry summary
+				continue;
+			}
+			Payload next = gson.fromJson(candidate.getBody(), Payload.class);
+			String html = toHtml(next);
+			if (sb.length() + COALESCE_SEPARATOR.length() + html.length() > maxLength) {
+				break;
+			}
+			if (!pipeline.queue.remove(candidate)) {
+				// taken by a concurrent dispatch
+				continue;
+			}
+			sb.append(COALESCE_SEPARATOR).append(html);
+			if (Color.red == next.getColor()) {
+				color = Color.red;
+			}
+			notify |= next.notify;
+			parts.add(candidate);
+		}
+		if (parts.size() == 1) {
+			return delivery;
+		}
+
+		pipeline.metrics.coalesced(parts.size() - 1);
+		Payload merged = Payload.html(sb.toString())
+				.color(color)
+				.priority(delivery.payload.getPriority())
+				.endpoint(delivery.payload.getEndpoint())
+				.room(delivery.requested);
+		merged.notify = notify;
+		merged.setRepository(delivery.payload.getRepository());
+		merged.setCreated(delivery.payload.getCreated());
+		return new Delivery(merged, delivery.requested, delivery.room, delivery.url, serialize(merged), parts);
+	}
+
+	private String toHtml(Payload payload) {
+		String message = payload.getMessage() == null ? "" : payload.getMessage();
+		if (MessageFormat.html == payload.getMessageFormat()) {
+			return message;
+		}
+		return MarkdownRenderer.renderText(message);
 	}
 
 	/**
@@ -159,98 +1248,519 @@ public class HipChatter implements IManager {
 	 * @throws IOException
 	 */
 	public void send(Payload payload) throws IOException {
+		Delivery delivery = prepare(payload);
+		if (!getBreaker(delivery.room).allowRequest()) {
+			metrics.shed();
+			throw new IOException(String.format("HipChat room '%s' is unavailable, the circuit breaker is open", delivery.room));
+		}
+		metrics.submitted();
+		long start = System.nanoTime();
+		try {
+			engine.post(delivery);
+			metrics.delivered(delivery.room, HttpEngine.elapsed(start));
+			onSuccess(delivery);
+		} catch (IOException e) {
+			metrics.failed(delivery.room, HttpEngine.elapsed(start));
+			onFailure(delivery, e);
+			throw e;
+		}
+	}
 
-		String room = payload.getRoom();
-		String token;
+	/**
+	 * Returns true if the delivery has been waiting longer than the
+	 * time-to-live of its priority.
+	 *
+	 * @param delivery
+	 * @return true if the delivery is stale
+	 */
+	protected boolean isExpired(Delivery delivery) {
+		long ttl = timeToLive[delivery.payload.getPriority().ordinal()];
+		return ttl > 0 && System.currentTimeMillis() - delivery.payload.getCreated() > ttl;
+	}
 
-		if (StringUtils.isEmpty(room)) {
-			// default room
-			room = runtimeManager.getSettings().getString(Plugin.SETTING_DEFAULT_ROOM, null);
-			token = runtimeManager.getSettings().getString(Plugin.SETTING_DEFAULT_TOKEN, null);
-		} else {
-			// specified room, validate token
-			token = runtimeManager.getSettings().getString(String.format(Plugin.SETTING_ROOM_TOKEN, room), null);
-			if (StringUtils.isEmpty(token)) {
-				room = runtimeManager.getSettings().getString(Plugin.SETTING_DEFAULT_ROOM, null);
-				token = runtimeManager.getSettings().getString(Plugin.SETTING_DEFAULT_TOKEN, null);
-				log.warn("No HipChat API token specified for '{}', defaulting to '{}'", payload.getRoom(), room);
-				log.warn("Please set '{} = TOKEN' in gitblit.properties", String.format(Plugin.SETTING_ROOM_TOKEN, room));
+	/**
+	 * Drops a stale delivery.  Unless disabled, expired deliveries are
+	 * counted per room and reported by a single summary once the queue has
+	 * caught up.
+	 *
+	 * @param delivery
+	 */
+	protected void expire(Delivery delivery) {
+		pipeline(delivery).metrics.expired();
+		dropped(delivery, "notification expired");
+		if (!runtimeManager.getSettings().getBoolean(Plugin.SETTING_TTL_SUMMARY, true)) {
+			return;
+		}
+		synchronized (expired) {
+			Expired room = expired.get(delivery.getKey());
+			if (room == null) {
+				room = new Expired(delivery.requested, delivery.payload.getEndpoint());
+				expired.put(delivery.getKey(), room);
+			}
+			room.count++;
+		}
+	}
+
+	/**
+	 * Queues one summary for each room which had expired deliveries.
+	 *
+	 * @return true if any summary was queued
+	 */
+	protected boolean flushExpired() {
+		List<Expired> rooms;
+		synchronized (expired) {
+			if (expired.isEmpty()) {
+				return false;
 			}
+			rooms = new ArrayList<Expired>(expired.values());
+			expired.clear();
+		}
+		for (Expired room : rooms) {
+			String msg = room.count == 1 ? "1 notification expired during the HipChat outage"
+					: String.format("%d notifications expired during the HipChat outage", room.count);
+			Payload payload = Payload.text(msg).color(Color.gray).room(room.requested).endpoint(room.endpoint);
+			enqueue(payload, false);
 		}
+		return true;
+	}
 
-		String hipchatUrl = String.format("https://api.hipchat.com/v2/room/%s/notification?auth_token=%s", room, token);
+	/**
+	 * Handles a delivery rejected by an open circuit breaker by spilling it
+	 * to the outbox or by dropping it.
+	 *
+	 * @param delivery
+	 */
+	protected void shed(Delivery delivery) {
+		pipeline(delivery).metrics.shed();
+		boolean spill = runtimeManager.getSettings().getBoolean(Plugin.SETTING_BREAKER_OUTBOX, true);
+		if (!spill || !outbox.offer(delivery)) {
+			log.warn("HipChat room '{}' is unavailable, dropped notification", delivery.room);
+		}
+		dropped(delivery, "HipChat room is unavailable");
+	}
 
-		Gson gson = new GsonBuilder().create();
+	/**
+	 * Reports a delivery which is not posted now, because it was dropped or
+	 * kept in the outbox, as failed to the listeners so they do not wait for
+	 * it.
+	 *
+	 * @param delivery
+	 * @param reason
+	 */
+	protected void dropped(Delivery delivery, String reason) {
+		if (listeners.isEmpty()) {
+			return;
+		}
+		IOException cause = new IOException(reason);
+		for (DeliveryCallback listener : listeners) {
+			for (Delivery part : delivery.getParts()) {
+				listener.failed(part, cause, 0);
+			}
+		}
+	}
 
-		HttpClient client = new DefaultHttpClient();
-		HttpPost post = new HttpPost(hipchatUrl);
-		post.getParams().setParameter(CoreProtocolPNames.USER_AGENT, Constants.NAME + "/" + Constants.getVersion());
-		post.getParams().setParameter(CoreProtocolPNames.HTTP_CONTENT_CHARSET, "UTF-8");
+	/**
+	 * Reports a delivery which was written to the cluster inbox as completed
+	 * to the listeners, the elected node posts it.
+	 *
+	 * @param delivery
+	 */
+	protected void forwarded(Delivery delivery) {
+		for (DeliveryCallback listener : listeners) {
+			listener.completed(delivery, 0);
+		}
+	}
 
-		client.getParams().setParameter(AllClientPNames.CONNECTION_TIMEOUT, 5000);
-		client.getParams().setParameter(AllClientPNames.SO_TIMEOUT, 5000);
+	protected void onSuccess(Delivery delivery) {
+		Pipeline pipeline = pipeline(delivery);
+		if (getBreaker(pipeline, delivery.room).onSuccess() && pipeline == live) {
+			log.info("HipChat room '{}' is available again, closed circuit breaker", delivery.room);
+			replay(delivery.room);
+		}
+	}
 
-		String body = gson.toJson(payload);
-		StringEntity entity = new StringEntity(body, "UTF-8");
-		entity.setContentType("application/json");
-		post.setEntity(entity);
+	protected void onFailure(Delivery delivery, Exception cause) {
+		if (cause instanceof HipChatException && ((HipChatException) cause).isClientError()) {
+			// HipChat is reachable, the request itself was rejected
+			onSuccess(delivery);
+			return;
+		}
+		Pipeline pipeline = pipeline(delivery);
+		if (getBreaker(pipeline, delivery.room).onFailure() && pipeline == live) {
+			log.warn("HipChat room '{}' is unavailable, opened circuit breaker", delivery.room);
+		}
+	}
 
-		HttpResponse response = client.execute(post);
-		int rc = response.getStatusLine().getStatusCode();
+	/**
+	 * Resubmits the outbox payloads of a room.
+	 *
+	 * @param room the resolved room or null for all rooms
+	 */
+	protected void replay(String room) {
+		replay(room, Integer.MAX_VALUE);
+	}
 
-		if (HttpStatus.SC_NO_CONTENT == rc) {
-			// This is the expected result code
-			// https://www.hipchat.com/docs/apiv2/method/send_room_notification
-			// replace this with post.closeConnection() after JGit updates to HttpClient 4.2
-			post.abort();
-		} else {
-			String result = null;
-			InputStream is = response.getEntity().getContent();
-			try {
-				byte [] buffer = new byte[8192];
-				ByteArrayOutputStream os = new ByteArrayOutputStream();
-				int len = 0;
-				while ((len = is.read(buffer)) > -1) {
-					os.write(buffer, 0, len);
+	/**
+	 * Resubmits at most max outbox payloads of a room.  Payloads are only
+	 * queued while they fit the remaining queue capacity, they never evict
+	 * queued deliveries or each other.  Whatever does not fit stays in the
+	 * outbox for the next replay.
+	 *
+	 * @param room the resolved room or null for all rooms
+	 * @param max the maximum number of payloads
+	 */
+	protected void replay(final String room, final int max) {
+		if (!accepting) {
+			return;
+		}
+		taskPool.submit(new Runnable() {
+			@Override
+			public void run() {
+				int replayed = 0;
+				boolean full = false;
+				while (accepting && replayed < max && !full) {
+					if (cluster != null && !cluster.isLeader()) {
+						// the elected node owns the shared outbox
+						break;
+					}
+					int batch = Math.min(Math.min(max - replayed, live.queue.remaining()), 100);
+					if (batch <= 0) {
+						full = true;
+						break;
+					}
+					List<Payload> payloads = outbox.drain(room, batch);
+					if (payloads.isEmpty()) {
+						break;
+					}
+					for (Payload payload : payloads) {
+						Delivery delivery = prepare(payload);
+						if (full || !live.queue.offer(delivery, getRepositoryWeight(payload.getRepository()))) {
+							// put it back for the next replay
+							full = true;
+							if (!outbox.offer(delivery)) {
+								log.warn("HipChat queue is full, dropped notification for '{}'", delivery.room);
+								dropped(delivery, "HipChat queue is full");
+							}
+							continue;
+						}
+						replayed++;
+					}
+					dispatch(live);
 				}
-				result = os.toString("UTF-8");
-			} finally {
-				if (is != null) {
-					is.close();
+				if (replayed > 0) {
+					log.info("Replayed {} HipChat notifications for {} from the outbox{}", replayed,
+							room == null ? "all rooms" : ("'" + room + "'"),
+							full ? ", the rest waits for room in the queue" : "");
 				}
 			}
+		});
+	}
+
+	/**
+	 * Resolves the room and token of the payload and serializes it.
+	 *
+	 * @param payload
+	 * @return a delivery
+	 */
+	protected Delivery prepare(Payload payload) {
+		Map<String, String> rooms = new LinkedHashMap<String, String>();
+		rooms.put(getRoom(payload.getRoom()), payload.getRoom());
+		return prepareAll(payload, rooms).get(0);
+	}
+
+	/**
+	 * Serializes the payload once and resolves a delivery for the primary
+	 * room and for each additional room.  Rooms which resolve to the same
+	 * destination are only delivered once.
+	 *
+	 * @param payload
+	 * @return the deliveries
+	 */
+	protected List<Delivery> prepareAll(Payload payload) {
+		return prepareAll(payload, getRooms(payload));
+	}
+
+	/**
+	 * Truncates and serializes the message of the payload once and resolves
+	 * a delivery for each room.  The deliveries share a copy of the payload
+	 * without the message, the payload itself is not modified.
+	 *
+	 * @param payload
+	 * @param rooms the resolved rooms and the requested rooms they were
+	 *        resolved from
+	 * @return the deliveries
+	 */
+	protected List<Delivery> prepareAll(Payload payload, Map<String, String> rooms) {
+		Payload copy = payload.copy();
+		copy.setMessage(payload.getMessage());
+		truncate(copy);
+		byte [] body = serialize(copy);
+		copy.setMessage((String) null);
+		List<Delivery> list = new ArrayList<Delivery>();
+		for (String requested : rooms.values()) {
+			list.add(resolve(copy, requested, body));
+		}
+		return list;
+	}
+
+	/**
+	 * Resolves the primary room and each additional room of the payload.
+	 * Rooms which resolve to the same destination are only listed once.
+	 *
+	 * @param payload
+	 * @return the resolved rooms, primary room first, and the requested rooms
+	 *         they were resolved from
+	 */
+	protected Map<String, String> getRooms(Payload payload) {
+		Map<String, String> rooms = new LinkedHashMap<String, String>();
+		rooms.put(getRoom(payload.getRoom()), payload.getRoom());
+		for (String room : payload.getAdditionalRooms()) {
+			String resolved = getRoom(room);
+			if (!rooms.containsKey(resolved)) {
+				rooms.put(resolved, room);
+			}
+		}
+		return rooms;
+	}
+
+	/**
+	 * Resolves a requested room.  A room without an API token is posted to
+	 * the default room instead.
+	 *
+	 * @param requested the requested room, null for the default room
+	 * @return the room
+	 */
+	protected String getRoom(String requested) {
+		if (!StringUtils.isEmpty(requested)) {
+			String token = runtimeManager.getSettings().getString(String.format(Plugin.SETTING_ROOM_TOKEN, requested), null);
+			if (!StringUtils.isEmpty(token)) {
+				return requested;
+			}
+			if (warnedRooms.add(requested)) {
+				log.warn("No HipChat API token specified for '{}', defaulting to '{}'", requested,
+						runtimeManager.getSettings().getString(Plugin.SETTING_DEFAULT_ROOM, null));
+				log.warn("Please set '{} = TOKEN' in gitblit.properties", String.format(Plugin.SETTING_ROOM_TOKEN, requested));
+			}
+		}
+		return runtimeManager.getSettings().getString(Plugin.SETTING_DEFAULT_ROOM, null);
+	}
+
+	/**
+	 * Serializes the payload as compact UTF-8 JSON.
+	 *
+	 * @param payload
+	 * @return the JSON body
+	 */
+	protected byte [] serialize(Payload payload) {
+		Gson gson = new GsonBuilder().create();
+		return gson.toJson(payload).getBytes(Delivery.UTF_8);
+	}
+
+	/**
+	 * Resolves the room and token for a serialized payload.
+	 *
+	 * @param payload
+	 * @param requested the requested room, null for the default room
+	 * @param body the serialized payload
+	 * @return a delivery
+	 */
+	protected Delivery resolve(Payload payload, String requested, byte [] body) {
+		String room = getRoom(requested);
+		String token = null;
+		if (!StringUtils.isEmpty(requested) && requested.equals(room)) {
+			// specified room
+			token = runtimeManager.getSettings().getString(String.format(Plugin.SETTING_ROOM_TOKEN, room), null);
+		}
+		if (StringUtils.isEmpty(token)) {
+			// default room
+			token = runtimeManager.getSettings().getString(Plugin.SETTING_DEFAULT_TOKEN, null);
+		}
+
+		String api = payload.getEndpoint() == null ? getApiUrl() : payload.getEndpoint();
+		String hipchatUrl = String.format("%s/room/%s/notification?auth_token=%s", api, encode(room), encode(token));
+
+		return new Delivery(payload, requested, room, hipchatUrl, body);
+	}
+
+	/**
+	 * Encodes a room or token for the API url.  Room names may contain
+	 * spaces.
+	 *
+	 * @param value
+	 * @return the encoded value
+	 */
+	static String encode(String value) {
+		if (value == null) {
+			return "";
+		}
+		try {
+			return URLEncoder.encode(value, "UTF-8").replace("+", "%20");
+		} catch (UnsupportedEncodingException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * Truncates the message of the payload if it exceeds the maximum length
+	 * so that HipChat does not reject it.
+	 *
+	 * @param payload
+	 */
+	protected void truncate(Payload payload) {
+		String message = payload.getMessage();
+		int maxLength = getMaxMessageLength();
+		if (message == null || message.length() <= maxLength) {
+			return;
+		}
+
+		if (MessageFormat.html == payload.getMessageFormat()) {
+			String suffix = MessageTruncator.getSuffix(payload.getUrl());
+			payload.setMessage(MessageTruncator.truncateHtml(message, maxLength, suffix));
+		} else {
+			payload.setMessage(MessageTruncator.truncateText(message, maxLength));
+		}
+		metrics.truncated();
+		log.debug("Truncated HipChat message from {} to {} characters", message.length(), payload.getMessage().length());
+	}
+
+	/**
+	 * Runs the work which follows a completed request on the task pool, so
+	 * the I/O thread of the engine is free for the next response.  If the
+	 * pool is shutting down the outcome is reported inline and nothing more
+	 * is dispatched.
+	 *
+	 * @param pipeline the pipeline to dispatch afterwards
+	 * @param outcome reports the outcome to the breakers and listeners
+	 */
+	protected void handOff(final Pipeline pipeline, final Runnable outcome) {
+		try {
+			taskPool.execute(new Runnable() {
+				@Override
+				public void run() {
+					outcome.run();
+					dispatch(pipeline);
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			outcome.run();
+		}
+	}
+
+	/**
+	 * The queue, limiter, breakers and metrics which deliveries to one API
+	 * pass through.
+	 */
+	class Pipeline {
+
+		final HipChatMetrics metrics;
+
+		final AdaptiveLimiter limiter;
+
+		final DeliveryQueue queue;
 
-			log.error("HipChat plugin sent:");
-			log.error(body);
-			log.error("HipChat returned:");
-			log.error(result);
+		final ConcurrentMap<String, CircuitBreaker> breakers;
 
-			throw new IOException(String.format("HipChat Error (%s): %s", rc, result));
+		final DeliveryCallback callback;
+
+		// posted deliveries which have no outcome yet
+		final Set<Delivery> inFlight;
+
+		Pipeline(HipChatMetrics metrics, AdaptiveLimiter limiter, DeliveryQueue queue,
+				ConcurrentMap<String, CircuitBreaker> breakers) {
+			this.metrics = metrics;
+			this.limiter = limiter;
+			this.queue = queue;
+			this.breakers = breakers;
+			this.callback = new MetricsCallback(this);
+			this.inFlight = Collections.newSetFromMap(new ConcurrentHashMap<Delivery, Boolean>());
 		}
 	}
 
-	private static class HipChatterTask implements Serializable, Callable<Boolean> {
+	/**
+	 * Records the outcome of asynchronous deliveries.  The metrics and the
+	 * limiter are updated on the calling thread, everything else is handed
+	 * off to the task pool.  The outcome of a delivery which was persisted
+	 * at shutdown while it was in flight is not reported again.
+	 */
+	private class MetricsCallback implements DeliveryCallback {
 
-		private static final long serialVersionUID = 1L;
+		final Pipeline pipeline;
 
-		final Logger log = LoggerFactory.getLogger(getClass());
-		final HipChatter hipChatter;
-		final Payload payload;
+		MetricsCallback(Pipeline pipeline) {
+			this.pipeline = pipeline;
+		}
 
-		public HipChatterTask(HipChatter slacker, Payload payload) {
-			this.hipChatter = slacker;
-			this.payload = payload;
+		@Override
+		public void completed(final Delivery delivery, final long elapsed) {
+			pipeline.metrics.delivered(delivery.room, elapsed);
+			pipeline.limiter.onSuccess(elapsed);
+			if (!pipeline.inFlight.remove(delivery)) {
+				return;
+			}
+			handOff(pipeline, new Runnable() {
+				@Override
+				public void run() {
+					onSuccess(delivery);
+					for (DeliveryCallback listener : listeners) {
+						for (Delivery part : delivery.getParts()) {
+							listener.completed(part, elapsed);
+						}
+					}
+				}
+			});
 		}
 
 		@Override
-		public Boolean call() {
-			try {
-				hipChatter.send(payload);
-				return true;
-			} catch (IOException e) {
-				log.error("Failed to send asynchronously to HipChat!", e);
+		public void failed(final Delivery delivery, final Exception cause, final long elapsed) {
+			pipeline.metrics.failed(delivery.room, elapsed);
+			if (cause instanceof HipChatException && ((HipChatException) cause).isClientError()) {
+				pipeline.limiter.onSuccess(elapsed);
+			} else {
+				pipeline.limiter.onDropped();
 			}
-			return false;
+			if (!pipeline.inFlight.remove(delivery)) {
+				return;
+			}
+			handOff(pipeline, new Runnable() {
+				@Override
+				public void run() {
+					log.error("Failed to send asynchronously to HipChat!", cause);
+					onFailure(delivery, cause);
+					for (DeliveryCallback listener : listeners) {
+						for (Delivery part : delivery.getParts()) {
+							listener.failed(part, cause, elapsed);
+						}
+					}
+				}
+			});
+		}
+	}
+
+	private static class Suppressed {
+
+		final RepositoryModel repository;
+
+		final String pusher;
+
+		int count;
+
+		Suppressed(RepositoryModel repository, String pusher) {
+			this.repository = repository;
+			this.pusher = pusher;
+		}
+	}
+
+	private static class Expired {
+
+		final String requested;
+
+		final String endpoint;
+
+		int count;
+
+		Expired(String requested, String endpoint) {
+			this.requested = requested;
+			this.endpoint = endpoint;
 		}
 	}
 }
@@ -0,0 +1,186 @@
+/*
+ * Copyright 2014 gitblit.com.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.gitblit.plugin.hipchat;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A compact record of a hook event, written by the {@link EventRecorder} and
+ * replayed by the {@link EventReplayer}.  It captures the shape of the event,
+ * not its content: ref commands and commit counts of a push, the kind of a
+ * ticket change and the length of its text, and how long the hook took.
+ *
+ * @author James Moger
+ *
+ */
+public class HookEvent {
+
+	public static enum Type {
+		push, new_ticket, ticket_update
+	}
+
+	public static enum Kind {
+		fields, comment, patchset, review, merge, status
+	}
+
+	/**
+	 * The command of a pushed ref.
+	 */
+	public static enum Command {
+		create, update, rewrite, delete
+	}
+
+	final Type type;
+
+	final long time;
+
+	final String repository;
+
+	final String user;
+
+	final List<RefEvent> refs;
+
+	long duration;
+
+	long ticket;
+
+	Kind kind;
+
+	int textLength;
+
+	int commits;
+
+	HookEvent(Type type, long time, String repository, String user) {
+		this.type = type;
+		this.time = time;
+		this.repository = repository;
+		this.user = user;
+		this.refs = new ArrayList<RefEvent>();
+		this.kind = Kind.fields;
+	}
+
+	/**
+	 * Creates a push event.
+	 *
+	 * @param repository
+	 * @param user
+	 * @return a push event
+	 */
+	public static HookEvent push(String repository, String user) {
+		return new HookEvent(Type.push, System.currentTimeMillis(), repository, user);
+	}
+
+	/**
+	 * Creates a ticket event.
+	 *
+	 * @param type
+	 * @param repository
+	 * @param user
+	 * @param ticket
+	 * @param kind
+	 * @param textLength the length of the body or the comment
+	 * @param commits the commits added by a patchset
+	 * @return a ticket event
+	 */
+	public static HookEvent ticket(Type type, String repository, String user, long ticket, Kind kind,
+			int textLength, int commits) {
+		HookEvent event = new HookEvent(type, System.currentTimeMillis(), repository, user);
+		event.ticket = ticket;
+		event.kind = kind;
+		event.textLength = textLength;
+		event.commits = commits;
+		return event;
+	}
+
+	public HookEvent addRef(String ref, Command command, int commits) {
+		refs.add(new RefEvent(ref, command, commits));
+		return this;
+	}
+
+	public HookEvent duration(long nanos) {
+		this.duration = nanos;
+		return this;
+	}
+
+	void write(DataOutputStream out) throws IOException {
+		out.writeByte(type.ordinal());
+		out.writeLong(time);
+		out.writeLong(duration);
+		out.writeUTF(repository);
+		out.writeUTF(user);
+		switch (type) {
+		case push:
+			out.writeShort(refs.size());
+			for (RefEvent ref : refs) {
+				out.writeUTF(ref.ref);
+				out.writeByte(ref.command.ordinal());
+				out.writeInt(ref.commits);
+			}
+			break;
+		default:
+			out.writeLong(ticket);
+			out.writeByte(kind.ordinal());
+			out.writeInt(textLength);
+			out.writeInt(commits);
+			break;
+		}
+	}
+
+	static HookEvent read(DataInputStream in) throws IOException {
+		Type type = Type.values()[in.readUnsignedByte()];
+		long time = in.readLong();
+		long duration = in.readLong();
+		HookEvent event = new HookEvent(type, time, in.readUTF(), in.readUTF());
+		event.duration = duration;
+		switch (type) {
+		case push:
+			int count = in.readUnsignedShort();
+			for (int i = 0; i < count; i++) {
+				event.addRef(in.readUTF(), Command.values()[in.readUnsignedByte()], in.readInt());
+			}
+			break;
+		default:
+			event.ticket = in.readLong();
+			event.kind = Kind.values()[in.readUnsignedByte()];
+			event.textLength = in.readInt();
+			event.commits = in.readInt();
+			break;
+		}
+		return event;
+	}
+
+	/**
+	 * A ref command of a push.
+	 */
+	static class RefEvent {
+
+		final String ref;
+
+		final Command command;
+
+		final int commits;
+
+		RefEvent(String ref, Command command, int commits) {
+			this.ref = ref;
+			this.command = command;
+			this.commits = commits;
+		}
+	}
+}
@@ -0,0 +1,145 @@
+/*
+ * Copyright 2014 gitblit.com.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.gitblit.plugin.hipchat;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpStatus;
+import org.apache.http.entity.ByteArrayEntity;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.gitblit.Constants;
+
+/**
+ * Posts deliveries to the HipChat API.
+ *
+ * @author James Moger
+ *
+ */
+public abstract class HttpEngine {
+
+	public static enum Type {
+		blocking, async;
+
+		public static Type fromString(String value) {
+			for (Type type : values()) {
+				if (type.name().equalsIgnoreCase(value)) {
+					return type;
+				}
+			}
+			return blocking;
+		}
+	}
+
+	static final int CONNECTION_TIMEOUT = 5000;
+
+	static final int SO_TIMEOUT = 5000;
+
+	final Logger log = LoggerFactory.getLogger(getClass());
+
+	/**
+	 * Post a delivery and wait for the result.
+	 *
+	 * @param delivery
+	 * @throws IOException
+	 */
+	public abstract void post(Delivery delivery) throws IOException;
+
+	/**
+	 * Issue a GET request and return the status code.
+	 *
+	 * @param url
+	 * @return the HTTP status code
+	 * @throws IOException
+	 */
+	public abstract int get(String url) throws IOException;
+
+	/**
+	 * Post a delivery and report the result to the callback.
+	 *
+	 * @param delivery
+	 * @param callback
+	 */
+	public abstract void postAsync(Delivery delivery, DeliveryCallback callback);
+
+	/**
+	 * Release the resources held by the engine.
+	 */
+	public abstract void close();
+
+	protected String getUserAgent() {
+		return Constants.NAME + "/" + Constants.getVersion();
+	}
+
+	protected ByteArrayEntity getEntity(Delivery delivery) {
+		ByteArrayEntity entity = new ByteArrayEntity(delivery.body);
+		entity.setContentType("application/json; charset=UTF-8");
+		return entity;
+	}
+
+	/**
+	 * Validates the HipChat response.
+	 *
+	 * @param delivery
+	 * @param response
+	 * @return true if HipChat accepted the notification
+	 * @throws IOException if HipChat rejected the notification
+	 */
+	protected boolean checkResponse(Delivery delivery, HttpResponse response) throws IOException {
+		int rc = response.getStatusLine().getStatusCode();
+
+		if (HttpStatus.SC_NO_CONTENT == rc) {
+			// This is the expected result code
+			// https://www.hipchat.com/docs/apiv2/method/send_room_notification
+			return true;
+		}
+
+		String result = null;
+		if (response.getEntity() == null) {
+			log.error("HipChat returned {} without a response body", rc);
+			throw new HipChatException(rc, String.format("HipChat Error (%s)", rc));
+		}
+		InputStream is = response.getEntity().getContent();
+		try {
+			byte [] buffer = new byte[8192];
+			ByteArrayOutputStream os = new ByteArrayOutputStream();
+			int len = 0;
+			while ((len = is.read(buffer)) > -1) {
+				os.write(buffer, 0, len);
+			}
+			result = os.toString("UTF-8");
+		} finally {
+			if (is != null) {
+				is.close();
+			}
+		}
+
+		log.error("HipChat plugin sent:");
+		log.error(delivery.getBody());
+		log.error("HipChat returned:");
+		log.error(result);
+
+		throw new HipChatException(rc, String.format("HipChat Error (%s): %s", rc, result));
+	}
+
+	protected static long elapsed(long start) {
+		return (System.nanoTime() - start) / 1000000L;
+	}
+}
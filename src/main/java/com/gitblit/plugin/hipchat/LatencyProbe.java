@@ -0,0 +1,162 @@
+/*
+ * Copyright 2014 gitblit.com.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.gitblit.plugin.hipchat;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Measures the latency of tracked payloads from submission to delivery.
+ *
+ * The probe is registered as a listener of {@link HipChatter}.  At most
+ * window tracked payloads may be unfinished at a time.
+ *
+ * @author James Moger
+ *
+ */
+public class LatencyProbe implements DeliveryCallback {
+
+	final ConcurrentMap<Long, Long> pending;
+
+	final List<Long> latencies;
+
+	final AtomicInteger failed;
+
+	final AtomicInteger tracked;
+
+	final Semaphore window;
+
+	final int size;
+
+	LatencyProbe(int window) {
+		this.size = Math.max(1, window);
+		this.pending = new ConcurrentHashMap<Long, Long>();
+		this.latencies = Collections.synchronizedList(new ArrayList<Long>());
+		this.failed = new AtomicInteger();
+		this.tracked = new AtomicInteger();
+		this.window = new Semaphore(size);
+	}
+
+	/**
+	 * Waits for a free slot in the window.
+	 *
+	 * @param deadline in nanoseconds
+	 * @return false if the deadline passed
+	 * @throws InterruptedException
+	 */
+	public boolean acquire(long deadline) throws InterruptedException {
+		return window.tryAcquire(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+	}
+
+	/**
+	 * Tracks a payload which has taken a slot of the window.
+	 *
+	 * @param payload
+	 * @param start the submission time in nanoseconds
+	 */
+	public void track(Payload payload, long start) {
+		tracked.incrementAndGet();
+		pending.put(payload.getId(), start);
+	}
+
+	/**
+	 * Returns a slot which was acquired but not used.
+	 */
+	public void cancel() {
+		window.release();
+	}
+
+	/**
+	 * Waits until all tracked payloads have finished.
+	 *
+	 * @param deadline in nanoseconds
+	 * @throws InterruptedException
+	 */
+	public void await(long deadline) throws InterruptedException {
+		if (window.tryAcquire(size, deadline - System.nanoTime(), TimeUnit.NANOSECONDS)) {
+			window.release(size);
+		}
+	}
+
+	@Override
+	public void completed(Delivery delivery, long elapsed) {
+		Long start = pending.remove(delivery.payload.getId());
+		if (start != null) {
+			latencies.add(System.nanoTime() - start);
+			window.release();
+		}
+	}
+
+	@Override
+	public void failed(Delivery delivery, Exception cause, long elapsed) {
+		if (pending.remove(delivery.payload.getId()) != null) {
+			failed.incrementAndGet();
+			window.release();
+		}
+	}
+
+	/**
+	 * Returns the report rows for the measured period.
+	 *
+	 * @param elapsed the measured period in nanoseconds
+	 * @return the report rows
+	 */
+	public Object [][] report(long elapsed) {
+		long [] sorted;
+		synchronized (latencies) {
+			sorted = new long[latencies.size()];
+			for (int i = 0; i < sorted.length; i++) {
+				sorted[i] = latencies.get(i);
+			}
+		}
+		Arrays.sort(sorted);
+
+		return new Object [][] {
+				{ "sent", tracked.get() },
+				{ "delivered", sorted.length },
+				{ "failed", failed.get() },
+				{ "unfinished", tracked.get() - sorted.length - failed.get() },
+				{ "elapsed (s)", String.format("%.2f", elapsed / 1e9) },
+				{ "throughput (msg/s)", String.format("%.1f", sorted.length / (elapsed / 1e9)) },
+				{ "p50 latency (ms)", millis(percentile(sorted, 50)) },
+				{ "p95 latency (ms)", millis(percentile(sorted, 95)) },
+				{ "p99 latency (ms)", millis(percentile(sorted, 99)) },
+				{ "max latency (ms)", millis(sorted.length == 0 ? 0 : sorted[sorted.length - 1]) }
+		};
+	}
+
+	/**
+	 * Returns the nearest-rank percentile of the sorted values.
+	 */
+	static long percentile(long [] sorted, int percentile) {
+		if (sorted.length == 0) {
+			return 0;
+		}
+		int rank = (int) Math.ceil(percentile / 100d * sorted.length);
+		return sorted[Math.max(0, rank - 1)];
+	}
+
+	static String millis(long nanos) {
+		return String.format("%.1f", nanos / 1e6);
+	}
+}
@@ -0,0 +1,204 @@
+/*
+ * Copyright 2014 gitblit.com.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.gitblit.plugin.hipchat;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.gitblit.plugin.hipchat.ExecutorStrategy.NamedThreadFactory;
+import com.gitblit.utils.StringUtils;
+
+/**
+ * Runs Markdown transforms on a small dedicated pool with a time limit.
+ *
+ * A transform which is rejected because the pool is busy, fails or does not
+ * finish in time returns null and the caller falls back to escaped text, so
+ * a pathological ticket can not stall the calling thread.
+ *
+ * The transform can not be interrupted, a timed out transform keeps its
+ * worker until it finishes.  Input longer than the maximum length is
+ * therefore never transformed, and while every worker is still busy with an
+ * earlier transform new input is rendered as text without being submitted.
+ *
+ * @author James Moger
+ *
+ */
+public class MarkdownRenderer {
+
+	final Logger log = LoggerFactory.getLogger(getClass());
+
+	final ThreadPoolExecutor pool;
+
+	final int threads;
+
+	final int maxLength;
+
+	final AtomicInteger running;
+
+	final AtomicLong skipped;
+
+	MarkdownRenderer(int threads, int maxLength) {
+		this.threads = Math.max(1, threads);
+		this.maxLength = maxLength;
+		this.running = new AtomicInteger();
+		this.skipped = new AtomicLong();
+		this.pool = new ThreadPoolExecutor(0, this.threads, 60L, TimeUnit.SECONDS,
+				new SynchronousQueue<Runnable>(), new NamedThreadFactory("HipChat-markdown"));
+	}
+
+	/**
+	 * Runs the transform of the Markdown and waits at most the timeout for
+	 * the result.
+	 *
+	 * @param markdown the input of the transform
+	 * @param transform
+	 * @param timeout in milliseconds
+	 * @return the transformed html or null
+	 */
+	public String render(String markdown, final Callable<String> transform, long timeout) {
+		if (timeout <= 0) {
+			return null;
+		}
+		if (markdown.length() > maxLength) {
+			log.debug("HipChat Markdown of {} characters exceeds {}, using plain text", markdown.length(), maxLength);
+			return null;
+		}
+		if (running.incrementAndGet() > threads) {
+			// workers are held by transforms which ran over their deadline
+			running.decrementAndGet();
+			if (skipped.getAndIncrement() == 0) {
+				log.warn("All HipChat Markdown renderers are busy, using plain text");
+			}
+			return null;
+		}
+
+		Future<String> future;
+		try {
+			future = pool.submit(new Callable<String>() {
+				@Override
+				public String call() throws Exception {
+					try {
+						return transform.call();
+					} finally {
+						running.decrementAndGet();
+					}
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			// a finished worker has not returned to the pool yet
+			running.decrementAndGet();
+			skipped.incrementAndGet();
+			return null;
+		}
+
+		try {
+			return future.get(timeout, TimeUnit.MILLISECONDS);
+		} catch (TimeoutException e) {
+			future.cancel(true);
+			log.warn("HipChat Markdown rendering exceeded {} ms, using plain text", timeout);
+		} catch (ExecutionException e) {
+			log.error("HipChat Markdown rendering failed, using plain text", e.getCause());
+		} catch (InterruptedException e) {
+			future.cancel(true);
+			Thread.currentThread().interrupt();
+		}
+		return null;
+	}
+
+	/**
+	 * Returns the number of transforms which are still running, including
+	 * those which ran over their deadline.
+	 *
+	 * @return the running transforms
+	 */
+	public int getRunning() {
+		return running.get();
+	}
+
+	/**
+	 * Returns the number of transforms which were skipped because all
+	 * workers were busy.
+	 *
+	 * @return the skipped transforms
+	 */
+	public long getSkipped() {
+		return skipped.get();
+	}
+
+	public void close() {
+		pool.shutdownNow();
+	}
+
+	/**
+	 * Strips paragraph tags in a single pass, separating paragraphs with
+	 * line breaks.
+	 *
+	 * @param html
+	 * @return html without paragraph tags
+	 */
+	public static String stripParagraphs(String html) {
+		StringBuilder sb = new StringBuilder(html.length() + 32);
+		int i = 0;
+		int n = html.length();
+		while (i < n) {
+			char c = html.charAt(i);
+			if (c == '<') {
+				if (html.startsWith("<p>", i)) {
+					i += 3;
+					continue;
+				} else if (html.startsWith("</p>", i)) {
+					sb.append("<br/><br/>");
+					i += 4;
+					continue;
+				}
+			}
+			sb.append(c);
+			i++;
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * Renders text as escaped html, preserving line breaks.
+	 *
+	 * @param text
+	 * @return escaped html
+	 */
+	public static String renderText(String text) {
+		String escaped = StringUtils.escapeForHtml(text, false);
+		StringBuilder sb = new StringBuilder(escaped.length() + 32);
+		for (int i = 0; i < escaped.length(); i++) {
+			char c = escaped.charAt(i);
+			if (c == '\n') {
+				sb.append("<br/>");
+			} else if (c != '\r') {
+				sb.append(c);
+			}
+		}
+		return sb.toString();
+	}
+}
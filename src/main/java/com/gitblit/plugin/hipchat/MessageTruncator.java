@@ -0,0 +1,182 @@
+/*
+ * Copyright 2014 gitblit.com.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.gitblit.plugin.hipchat;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Set;
+
+/**
+ * Shortens messages to fit the HipChat message size limit.
+ *
+ * Html messages are cut at a tag or word boundary, preferring the end of a
+ * table row, list item, paragraph or line break, and any elements which are
+ * still open at the cut are closed so that the result remains well-formed.
+ *
+ * @author James Moger
+ *
+ */
+public class MessageTruncator {
+
+	/**
+	 * HipChat rejects notifications longer than this.
+	 */
+	public static final int HIPCHAT_MAX_LENGTH = 10000;
+
+	static final String ELLIPSIS = "\u2026";
+
+	static final Set<String> VOID_TAGS = new HashSet<String>(Arrays.asList(
+			"br", "img", "hr", "input", "meta", "link", "col", "area", "base", "wbr"));
+
+	static final Set<String> BOUNDARY_TAGS = new HashSet<String>(Arrays.asList(
+			"/tr", "/li", "/p", "br", "/table", "/pre", "/div", "/ul", "/ol", "/blockquote"));
+
+	/**
+	 * Returns the suffix which marks a truncated message.
+	 *
+	 * @param url optional link to the full content
+	 * @return the truncation suffix
+	 */
+	public static String getSuffix(String url) {
+		if (url == null || url.isEmpty()) {
+			return ELLIPSIS;
+		}
+		return ELLIPSIS + " <a href=\"" + url + "\">read more</a>";
+	}
+
+	/**
+	 * Truncates plain text to the maximum length.
+	 *
+	 * @param text
+	 * @param maxLength
+	 * @return the text, truncated if necessary
+	 */
+	public static String truncateText(String text, int maxLength) {
+		if (text == null || text.length() <= maxLength) {
+			return text;
+		}
+		int cut = Math.max(0, maxLength - ELLIPSIS.length());
+		int space = text.lastIndexOf(' ', cut);
+		if (space > cut / 2) {
+			cut = space;
+		}
+		return text.substring(0, cut) + ELLIPSIS;
+	}
+
+	/**
+	 * Truncates html to the maximum length.
+	 *
+	 * @param html
+	 * @param maxLength
+	 * @param suffix appended after the closing tags
+	 * @return the html, truncated if necessary
+	 */
+	public static String truncateHtml(String html, int maxLength, String suffix) {
+		if (html == null || html.length() <= maxLength) {
+			return html;
+		}
+
+		Deque<String> open = new ArrayDeque<String>();
+		int best = 0;
+		String bestClose = "";
+		int structural = -1;
+		String structuralClose = "";
+
+		int i = 0;
+		int n = html.length();
+		while (i < n && i <= maxLength) {
+			char c = html.charAt(i);
+			boolean boundary;
+			boolean isStructural = false;
+			if (c == '<') {
+				int end = html.indexOf('>', i);
+				if (end < 0) {
+					break;
+				}
+				String tag = tagName(html, i + 1, end);
+				if (tag.startsWith("/")) {
+					close(open, tag.substring(1));
+				} else if (!VOID_TAGS.contains(tag) && html.charAt(end - 1) != '/' && !tag.isEmpty() && tag.charAt(0) != '!') {
+					open.push(tag);
+				}
+				isStructural = BOUNDARY_TAGS.contains(tag);
+				boundary = true;
+				i = end + 1;
+			} else if (c == '&') {
+				int end = html.indexOf(';', i);
+				i = (end > i && end - i < 10) ? end + 1 : i + 1;
+				boundary = true;
+			} else {
+				boundary = Character.isWhitespace(c);
+				i++;
+			}
+
+			if (boundary) {
+				String closing = closing(open);
+				int length = i + suffix.length() + closing.length();
+				if (length <= maxLength) {
+					best = i;
+					bestClose = closing;
+					if (isStructural) {
+						structural = i;
+						structuralClose = closing;
+					}
+				}
+			}
+		}
+
+		if (structural >= 0 && structural >= best / 2) {
+			// prefer dropping whole rows, items or paragraphs
+			return html.substring(0, structural) + structuralClose + suffix;
+		}
+		return html.substring(0, best) + bestClose + suffix;
+	}
+
+	private static String tagName(String html, int start, int end) {
+		int i = start;
+		if (i < end && html.charAt(i) == '/') {
+			i++;
+		}
+		while (i < end && !Character.isWhitespace(html.charAt(i)) && html.charAt(i) != '/') {
+			i++;
+		}
+		return html.substring(start, i).toLowerCase();
+	}
+
+	private static void close(Deque<String> open, String tag) {
+		if (!open.contains(tag)) {
+			return;
+		}
+		while (!open.isEmpty() && !open.pop().equals(tag)) {
+			// implicitly closed
+		}
+	}
+
+	private static String closing(Deque<String> open) {
+		if (open.isEmpty()) {
+			return "";
+		}
+		StringBuilder sb = new StringBuilder();
+		Iterator<String> itr = open.iterator();
+		while (itr.hasNext()) {
+			sb.append("</").append(itr.next()).append('>');
+		}
+		return sb.toString();
+	}
+}
@@ -0,0 +1,222 @@
+/*
+ * Copyright 2014 gitblit.com.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.gitblit.plugin.hipchat;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.gitblit.plugin.hipchat.Payload.Priority;
+import com.gitblit.utils.StringUtils;
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonParser;
+
+/**
+ * Persists payloads which could not be delivered so they can be sent later.
+ *
+ * Each payload is written as a small JSON file named by its creation time
+ * so that the outbox drains in the order the payloads were written.
+ *
+ * @author James Moger
+ *
+ */
+public class Outbox {
+
+	final Logger log = LoggerFactory.getLogger(getClass());
+
+	final File folder;
+
+	final Gson gson;
+
+	final JsonParser parser;
+
+	final AtomicLong sequence = new AtomicLong();
+
+	final String node;
+
+	Outbox(File folder) {
+		this(folder, null);
+	}
+
+	/**
+	 * @param folder
+	 * @param node identifies the writer when several nodes share the folder
+	 */
+	Outbox(File folder, String node) {
+		this.folder = folder;
+		this.node = StringUtils.isEmpty(node) ? "" : ("-" + node.replaceAll("[^A-Za-z0-9_.-]", "_"));
+		this.gson = new GsonBuilder().create();
+		this.parser = new JsonParser();
+	}
+
+	/**
+	 * Writes an undelivered payload to the outbox.
+	 *
+	 * @param delivery
+	 * @return true if the payload was written
+	 */
+	public synchronized boolean offer(Delivery delivery) {
+		if (delivery.payload.getEndpoint() != null) {
+			// the endpoint is not persisted, never replay such a payload to HipChat
+			return false;
+		}
+		folder.mkdirs();
+		String name = String.format("%013d-%06d%s.json", System.currentTimeMillis(), sequence.incrementAndGet() % 1000000, node);
+		File file = new File(folder, name);
+		File temp = new File(folder, name + ".tmp");
+		Entry entry = new Entry(delivery.room, delivery.requested, delivery.payload,
+				parser.parse(delivery.getBody()));
+		try (Writer writer = new OutputStreamWriter(new FileOutputStream(temp), "UTF-8")) {
+			gson.toJson(entry, writer);
+		} catch (IOException e) {
+			log.error("Failed to write HipChat payload to " + file, e);
+			temp.delete();
+			return false;
+		}
+		// readers only see complete files
+		if (!temp.renameTo(file)) {
+			log.error("Failed to write HipChat payload to " + file);
+			temp.delete();
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Removes and returns the payloads for a resolved room, oldest first.
+	 *
+	 * @param room the resolved room or null for all rooms
+	 * @return the payloads with their requested rooms restored
+	 */
+	public List<Payload> drain(String room) {
+		return drain(room, Integer.MAX_VALUE);
+	}
+
+	/**
+	 * Removes and returns at most max payloads for a resolved room, oldest
+	 * first.  The other payloads stay in the outbox.
+	 *
+	 * @param room the resolved room or null for all rooms
+	 * @param max the maximum number of payloads
+	 * @return the payloads with their requested rooms restored
+	 */
+	public synchronized List<Payload> drain(String room, int max) {
+		List<Payload> list = new ArrayList<Payload>();
+		for (File file : list()) {
+			if (list.size() >= max) {
+				break;
+			}
+			Entry entry = read(file);
+			if (entry == null) {
+				// unreadable, discard it
+				file.delete();
+				continue;
+			}
+			if (room == null || room.equals(entry.room)) {
+				Payload payload = gson.fromJson(entry.payload, Payload.class);
+				payload.setRoom(entry.requested);
+				payload.setPriority(entry.priority);
+				payload.setRepository(entry.repository);
+				payload.setExplicit(entry.explicit);
+				if (entry.created > 0) {
+					payload.setCreated(entry.created);
+				}
+				list.add(payload);
+				file.delete();
+			}
+		}
+		return list;
+	}
+
+	/**
+	 * Returns the number of payloads waiting in the outbox.
+	 *
+	 * @return the outbox size
+	 */
+	public synchronized int size() {
+		return list().size();
+	}
+
+	private List<File> list() {
+		File [] files = folder.listFiles();
+		if (files == null) {
+			return new ArrayList<File>();
+		}
+		Arrays.sort(files);
+		List<File> list = new ArrayList<File>();
+		for (File file : files) {
+			if (file.isFile() && file.getName().endsWith(".json")) {
+				list.add(file);
+			}
+		}
+		return list;
+	}
+
+	private Entry read(File file) {
+		try (Reader reader = new InputStreamReader(new FileInputStream(file), "UTF-8")) {
+			Entry entry = gson.fromJson(reader, Entry.class);
+			if (entry == null || entry.payload == null) {
+				return null;
+			}
+			return entry;
+		} catch (Exception e) {
+			log.error("Failed to read HipChat payload from " + file, e);
+			return null;
+		}
+	}
+
+	private static class Entry {
+
+		String room;
+
+		String requested;
+
+		Priority priority;
+
+		String repository;
+
+		long created;
+
+		boolean explicit;
+
+		// the serialized payload as posted to HipChat
+		JsonElement payload;
+
+		Entry(String room, String requested, Payload payload, JsonElement body) {
+			this.room = room;
+			this.requested = requested;
+			this.priority = payload.getPriority();
+			this.repository = payload.getRepository();
+			this.created = payload.getCreated();
+			this.explicit = payload.isExplicit();
+			this.payload = body;
+		}
+	}
+}
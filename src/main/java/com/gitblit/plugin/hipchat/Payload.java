@@ -15,6 +15,11 @@
  */
 package com.gitblit.plugin.hipchat;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
 import com.google.gson.annotations.SerializedName;
 
 public class Payload {
@@ -27,6 +32,12 @@ public class Payload {
 		yellow, red, green, purple, gray, random
 	}
 
+	public static enum Priority {
+		high, normal, low
+	}
+
+	private static final AtomicLong SEQUENCE = new AtomicLong();
+
 	private Color color;
 	private String message;
 	boolean notify;
@@ -35,10 +46,30 @@ public class Payload {
 
 	private transient String room;
 
+	private transient List<String> additionalRooms;
+
+	private transient Priority priority;
+
+	private transient String url;
+
+	private transient long created;
+
+	private transient String endpoint;
+
+	private transient String repository;
+
+	private transient boolean explicit;
+
+	private transient long id;
+
 	Payload() {
+		this.created = System.currentTimeMillis();
+		this.id = SEQUENCE.incrementAndGet();
 	}
 
 	public Payload(String message) {
+		this.created = System.currentTimeMillis();
+		this.id = SEQUENCE.incrementAndGet();
 		this.message = message;
 		this.messageFormat = MessageFormat.text;
 	}
@@ -73,6 +104,41 @@ public class Payload {
 		return this;
 	}
 
+	/**
+	 * Adds a room which also receives this payload.
+	 *
+	 * @param room
+	 * @return this payload
+	 */
+	public Payload addRoom(String room) {
+		if (additionalRooms == null) {
+			additionalRooms = new ArrayList<String>();
+		}
+		if (!additionalRooms.contains(room)) {
+			additionalRooms.add(room);
+		}
+		return this;
+	}
+
+	public Payload url(String url) {
+		setUrl(url);
+		return this;
+	}
+
+	public Payload priority(Priority priority) {
+		setPriority(priority);
+		return this;
+	}
+
+	public Payload endpoint(String endpoint) {
+		setEndpoint(endpoint);
+		return this;
+	}
+
+	public Payload explicit() {
+		setExplicit(true);
+		return this;
+	}
 
 	public String getMessage() {
 		return message;
@@ -109,4 +175,122 @@ public class Payload {
 	public void setRoom(String room) {
 		this.room = room;
 	}
+
+	public List<String> getAdditionalRooms() {
+		if (additionalRooms == null) {
+			return Collections.emptyList();
+		}
+		return additionalRooms;
+	}
+
+	public Priority getPriority() {
+		return priority == null ? Priority.normal : priority;
+	}
+
+	public void setPriority(Priority priority) {
+		this.priority = priority;
+	}
+
+	/**
+	 * Returns the link to the full content, offered when the message has
+	 * to be truncated.
+	 *
+	 * @return the url or null
+	 */
+	public String getUrl() {
+		return url;
+	}
+
+	public void setUrl(String url) {
+		this.url = url;
+	}
+
+	/**
+	 * Returns the time this payload was created, which is used to expire
+	 * stale notifications.
+	 *
+	 * @return the creation time in milliseconds
+	 */
+	public long getCreated() {
+		return created;
+	}
+
+	public void setCreated(long created) {
+		this.created = created;
+	}
+
+	/**
+	 * Returns the API url which receives this payload instead of the HipChat
+	 * API, e.g. a local stub endpoint.
+	 *
+	 * @return the API url or null for the HipChat API
+	 */
+	public String getEndpoint() {
+		return endpoint;
+	}
+
+	public void setEndpoint(String endpoint) {
+		this.endpoint = endpoint;
+	}
+
+	/**
+	 * Returns the repository which raised this payload, which is used to
+	 * share the delivery queue fairly between repositories.
+	 *
+	 * @return the repository name or null
+	 */
+	public String getRepository() {
+		return repository;
+	}
+
+	public void setRepository(String repository) {
+		this.repository = repository;
+	}
+
+	/**
+	 * Returns true if this payload was sent explicitly, e.g. by an
+	 * administrator, and must be posted even if the same message was posted
+	 * recently.
+	 *
+	 * @return true if the payload bypasses deduplication
+	 */
+	public boolean isExplicit() {
+		return explicit;
+	}
+
+	public void setExplicit(boolean explicit) {
+		this.explicit = explicit;
+	}
+
+	/**
+	 * Returns the id of this payload, which is shared by its queued copy.
+	 *
+	 * @return the id
+	 */
+	public long getId() {
+		return id;
+	}
+
+	/**
+	 * Returns a copy of this payload without its message.  The copy is
+	 * queued once the message has been serialized, so the caller may keep
+	 * using this payload.
+	 *
+	 * @return the copy
+	 */
+	Payload copy() {
+		Payload copy = new Payload();
+		copy.color = color;
+		copy.notify = notify;
+		copy.messageFormat = messageFormat;
+		copy.room = room;
+		copy.priority = priority;
+		copy.url = url;
+		copy.created = created;
+		copy.endpoint = endpoint;
+		copy.repository = repository;
+		copy.explicit = explicit;
+		copy.id = id;
+		return copy;
+	}
 }
@@ -28,6 +28,8 @@ public class Plugin extends GitblitPlugin {
 
 	public static final String SETTING_DEFAULT_TOKEN = "hipchat.defaultToken";
 
+	public static final String SETTING_API_URL = "hipchat.apiUrl";
+
 	public static final String SETTING_ROOM_TOKEN = "hipchat.%s.token";
 
 	public static final String SETTING_USE_PROJECT_ROOMS = "hipchat.useProjectRooms";
@@ -42,6 +44,116 @@ public class Plugin extends GitblitPlugin {
 
 	public static final String SETTING_POST_TAGS = "hipchat.postTags";
 
+	public static final String SETTING_ADDITIONAL_ROOMS = "hipchat.additionalRooms";
+
+	public static final String SETTING_INCLUDE_REFS = "hipchat.includeRefs";
+
+	public static final String SETTING_EXCLUDE_REFS = "hipchat.excludeRefs";
+
+	public static final String SETTING_EXCLUDE_PUSHERS = "hipchat.excludePushers";
+
+	public static final String SETTING_MIN_COMMITS = "hipchat.minCommits";
+
+	public static final String SETTING_HTTP_ENGINE = "hipchat.httpEngine";
+
+	public static final String SETTING_THROTTLE_PUSHER = "hipchat.throttle.pusher";
+
+	public static final String SETTING_THROTTLE_REPOSITORY = "hipchat.throttle.repository";
+
+	public static final String SETTING_THROTTLE_BURST = "hipchat.throttle.burst";
+
+	public static final String SETTING_THROTTLE_SUMMARY_INTERVAL = "hipchat.throttle.summaryInterval";
+
+	public static final String SETTING_BREAKER_FAILURES = "hipchat.breaker.failures";
+
+	public static final String SETTING_BREAKER_INTERVAL = "hipchat.breaker.interval";
+
+	public static final String SETTING_BREAKER_OUTBOX = "hipchat.breaker.outbox";
+
+	public static final String SETTING_OUTBOX_FOLDER = "hipchat.outboxFolder";
+
+	public static final String SETTING_CLUSTER_ENABLED = "hipchat.cluster.enabled";
+
+	public static final String SETTING_CLUSTER_FOLDER = "hipchat.cluster.folder";
+
+	public static final String SETTING_CLUSTER_NODE = "hipchat.cluster.node";
+
+	public static final String SETTING_CLUSTER_LEASE_TIME = "hipchat.cluster.leaseTime";
+
+	public static final String SETTING_LIMIT_INITIAL = "hipchat.limit.initial";
+
+	public static final String SETTING_LIMIT_MIN = "hipchat.limit.min";
+
+	public static final String SETTING_LIMIT_MAX = "hipchat.limit.max";
+
+	public static final String SETTING_LIMIT_LATENCY = "hipchat.limit.latency";
+
+	public static final String SETTING_WEIGHT_HIGH = "hipchat.weight.high";
+
+	public static final String SETTING_WEIGHT_NORMAL = "hipchat.weight.normal";
+
+	public static final String SETTING_WEIGHT_LOW = "hipchat.weight.low";
+
+	public static final String SETTING_REPOSITORY_WEIGHT = "hipchat.%s.weight";
+
+	public static final String SETTING_QUEUE_MAX_COUNT = "hipchat.queue.maxCount";
+
+	public static final String SETTING_QUEUE_MAX_SIZE = "hipchat.queue.maxSize";
+
+	public static final String SETTING_QUEUE_OVERFLOW = "hipchat.queue.overflow";
+
+	public static final String SETTING_COALESCE_BACKLOG = "hipchat.coalesce.backlog";
+
+	public static final String SETTING_COALESCE_MAX_MESSAGES = "hipchat.coalesce.maxMessages";
+
+	public static final String SETTING_DEDUP_WINDOW = "hipchat.dedupWindow";
+
+	public static final String SETTING_MAX_MESSAGE_LENGTH = "hipchat.maxMessageLength";
+
+	public static final String SETTING_MARKDOWN_TIMEOUT = "hipchat.markdown.timeout";
+
+	public static final String SETTING_MARKDOWN_THREADS = "hipchat.markdown.threads";
+
+	public static final String SETTING_MARKDOWN_MAX_LENGTH = "hipchat.markdown.maxLength";
+
+	public static final String SETTING_TICKET_THREADS = "hipchat.tickets.threads";
+
+	public static final String SETTING_TICKET_QUEUE = "hipchat.tickets.queueSize";
+
+	public static final String SETTING_BULK_THRESHOLD = "hipchat.bulk.threshold";
+
+	public static final String SETTING_BULK_WINDOW = "hipchat.bulk.window";
+
+	public static final String SETTING_RECORDER_ENABLED = "hipchat.recorder.enabled";
+
+	public static final String SETTING_RECORDER_FOLDER = "hipchat.recorder.folder";
+
+	public static final String SETTING_RECORDER_MAX_SIZE = "hipchat.recorder.maxSize";
+
+	public static final String SETTING_RECORDER_FILES = "hipchat.recorder.files";
+
+	public static final String SETTING_RECORDER_ANONYMIZE = "hipchat.recorder.anonymize";
+
+	public static final String SETTING_SHUTDOWN_TIMEOUT = "hipchat.shutdownTimeout";
+
+	public static final String SETTING_TTL_HIGH = "hipchat.ttl.high";
+
+	public static final String SETTING_TTL_NORMAL = "hipchat.ttl.normal";
+
+	public static final String SETTING_TTL_LOW = "hipchat.ttl.low";
+
+	public static final String SETTING_TTL_SUMMARY = "hipchat.ttl.summary";
+
+	public static final String SETTING_EXECUTOR = "hipchat.executor";
+
+	public static final String SETTING_POOL_SIZE = "hipchat.poolSize";
+
+	public static final String SETTING_IO_THREADS = "hipchat.ioThreads";
+
+	public static final String SETTING_MAX_CONNECTIONS = "hipchat.maxConnections";
+
+	public static final String SETTING_VALIDATE_TOKENS = "hipchat.validateTokens";
+
 	public Plugin(PluginWrapper wrapper) {
 		super(wrapper);
 
@@ -51,6 +163,7 @@ public class Plugin extends GitblitPlugin {
 
 	@Override
 	public void start() {
+		HipChatter.instance().start();
 		log.debug("{} STARTED.", getWrapper().getPluginId());
 	}
 
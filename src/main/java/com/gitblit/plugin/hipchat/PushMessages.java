@@ -0,0 +1,192 @@
+/*
+ * Copyright 2014 gitblit.com.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.gitblit.plugin.hipchat;
+
+import java.util.List;
+
+import org.eclipse.jgit.revwalk.RevCommit;
+
+import com.gitblit.Constants;
+import com.gitblit.plugin.hipchat.Payload.Color;
+import com.gitblit.plugin.hipchat.Payload.Priority;
+import com.gitblit.utils.ActivityUtils;
+import com.gitblit.utils.StringUtils;
+
+/**
+ * Builds the messages which are posted for pushed refs and the commit tables
+ * of pushes and patchsets.  The builders take plain values so that the
+ * {@link EventReplayer} renders recorded events exactly like the hooks.
+ *
+ * @author James Moger
+ *
+ */
+public class PushMessages {
+
+	/**
+	 * The most commits which are listed in a message.
+	 */
+	public static final int MAX_COMMITS = 5;
+
+	/**
+	 * Returns the message for a created branch or tag.
+	 *
+	 * @param user the display name of the pusher
+	 * @param type branch or tag
+	 * @param shortRef
+	 * @param logUrl
+	 * @param repoUrl
+	 * @param repository
+	 * @return the payload
+	 */
+	public static Payload created(String user, String type, String shortRef, String logUrl, String repoUrl,
+			String repository) {
+		String msg = String.format("<b>%s</b> has created %s <a href=\"%s\">%s</a> in <a href=\"%s\">%s</a>",
+				user, type, logUrl, shortRef, repoUrl, StringUtils.stripDotGit(repository));
+		return payload(msg);
+	}
+
+	/**
+	 * Returns the message for an updated branch or tag.
+	 *
+	 * @param user the display name of the pusher
+	 * @param action see {@link #action(boolean, boolean, int)}
+	 * @param url the log url of a branch or the commit url of a tag
+	 * @param shortRef
+	 * @param repoUrl
+	 * @param repository
+	 * @param rows the rows of the commit table or null if commits are not listed
+	 * @param commits the number of pushed commits
+	 * @param compareUrl
+	 * @return the payload
+	 */
+	public static Payload updated(String user, String action, String url, String shortRef, String repoUrl,
+			String repository, List<String> rows, int commits, String compareUrl) {
+		StringBuilder sb = new StringBuilder();
+		sb.append(String.format("<b>%s</b> has %s <a href=\"%s\">%s</a> in <a href=\"%s\">%s</a>",
+				user, action, url, shortRef, repoUrl, StringUtils.stripDotGit(repository)));
+		if (rows != null) {
+			commits(sb, rows, commits, compareUrl);
+		}
+		return payload(sb.toString());
+	}
+
+	/**
+	 * Returns the message for a deleted branch or tag.
+	 *
+	 * @param user the display name of the pusher
+	 * @param type branch or tag
+	 * @param shortRef
+	 * @param repoUrl
+	 * @param repository
+	 * @return the payload
+	 */
+	public static Payload deleted(String user, String type, String shortRef, String repoUrl, String repository) {
+		String msg = String.format("<b>%s</b> has deleted %s <b>%s</b> from <a href=\"%s\">%s</a>",
+				user, type, shortRef, repoUrl, StringUtils.stripDotGit(repository));
+		return payload(msg);
+	}
+
+	/**
+	 * Returns the action of an updated ref.
+	 *
+	 * @param tag
+	 * @param fastForward
+	 * @param commits the number of pushed commits of a fast-forward
+	 * @return the action
+	 */
+	public static String action(boolean tag, boolean fastForward, int commits) {
+		if (tag) {
+			return "<b>MOVED</b> tag";
+		} else if (!fastForward) {
+			return "<b>REWRITTEN</b>";
+		} else if (commits == 1) {
+			return "pushed 1 commit to";
+		}
+		return String.format("pushed %d commits to", commits);
+	}
+
+	/**
+	 * Returns a row of the commit table.  The body of the commit must be
+	 * parsed.
+	 *
+	 * @param commit
+	 * @param commitUrl
+	 * @param shortIdLen
+	 * @return the row
+	 */
+	public static String row(RevCommit commit, String commitUrl, int shortIdLen) {
+		String email = commit.getAuthorIdent().getEmailAddress();
+		if (email == null) {
+			email = commit.getAuthorIdent().getName();
+		}
+		return row(email.toLowerCase(), commitUrl, commit.getName().substring(0, shortIdLen), commit.getShortMessage());
+	}
+
+	/**
+	 * Returns a row of the commit table.
+	 *
+	 * @param email the email address of the author
+	 * @param commitUrl
+	 * @param shortId
+	 * @param shortMessage
+	 * @return the row
+	 */
+	public static String row(String email, String commitUrl, String shortId, String shortMessage) {
+		String gravatarUrl = ActivityUtils.getGravatarThumbnailUrl(email, 16);
+		String message = StringUtils.escapeForHtml(StringUtils.trimString(shortMessage, Constants.LEN_SHORTLOG), false);
+		return String.format("<tr><td><img src=\"%s\"/></td><td><pre><a href=\"%s\">%s</a></pre></td><td>%s</td></tr>\n",
+				gravatarUrl, commitUrl, shortId, message);
+	}
+
+	/**
+	 * Appends the abbreviated commit table and the compare link.
+	 *
+	 * @param sb
+	 * @param rows the rows of the first {@link #MAX_COMMITS} commits
+	 * @param commits the number of commits
+	 * @param compareUrl
+	 */
+	public static void commits(StringBuilder sb, List<String> rows, int commits, String compareUrl) {
+		sb.append("\n<table><tbody>\n");
+		for (int i = 0; i < Math.min(MAX_COMMITS, rows.size()); i++) {
+			sb.append(rows.get(i));
+		}
+		sb.append("</tbody></table>");
+
+		// compare link
+		if (commits > 1) {
+			String compareText;
+			if (commits > MAX_COMMITS) {
+				int diff = commits - MAX_COMMITS;
+				if (diff == 1) {
+					compareText = "1 more commit";
+				} else {
+					compareText = String.format("%d more commits", diff);
+				}
+			} else {
+				compareText = String.format("view comparison of these %s commits", commits);
+			}
+			sb.append(String.format("<a href=\"%s\">%s</a>", compareUrl, compareText));
+		}
+	}
+
+	private static Payload payload(String msg) {
+		Payload payload = Payload.html(msg);
+		payload.setColor(Color.gray);
+		payload.setPriority(Priority.low);
+		return payload;
+	}
+}
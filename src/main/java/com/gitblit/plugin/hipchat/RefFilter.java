@@ -0,0 +1,147 @@
+/*
+ * Copyright 2014 gitblit.com.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.gitblit.plugin.hipchat;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.regex.Pattern;
+
+import com.gitblit.Constants;
+
+/**
+ * Compiled ref and pusher rules of a repository.
+ *
+ * Ref rules are globs where * matches within a path segment, ** matches
+ * across segments and ? matches a single character.  A ref is posted if it
+ * matches an include rule (or there are none) and no exclude rule.
+ *
+ * @author James Moger
+ *
+ */
+public class RefFilter {
+
+	final boolean postBranches;
+
+	final boolean postTags;
+
+	final List<Pattern> includeRefs;
+
+	final List<Pattern> excludeRefs;
+
+	final Set<String> excludePushers;
+
+	final int minCommits;
+
+	RefFilter(boolean postBranches, boolean postTags, List<String> includeRefs, List<String> excludeRefs,
+			List<String> excludePushers, int minCommits) {
+		this.postBranches = postBranches;
+		this.postTags = postTags;
+		this.includeRefs = compile(includeRefs);
+		this.excludeRefs = compile(excludeRefs);
+		this.excludePushers = new HashSet<String>();
+		for (String pusher : excludePushers) {
+			this.excludePushers.add(pusher.toLowerCase());
+		}
+		this.minCommits = minCommits;
+	}
+
+	/**
+	 * Returns true if pushes by this user may be posted.
+	 *
+	 * @param username
+	 * @return true if the pusher is not excluded
+	 */
+	public boolean acceptsPusher(String username) {
+		return username == null || !excludePushers.contains(username.toLowerCase());
+	}
+
+	/**
+	 * Returns true if changes to this ref may be posted.
+	 *
+	 * @param refName
+	 * @return true if the ref is accepted
+	 */
+	public boolean acceptsRef(String refName) {
+		if (refName.startsWith(Constants.R_HEADS)) {
+			if (!postBranches) {
+				return false;
+			}
+		} else if (refName.startsWith(Constants.R_TAGS)) {
+			if (!postTags) {
+				return false;
+			}
+		} else {
+			// other refs are never posted
+			return false;
+		}
+
+		if (!includeRefs.isEmpty() && !matches(includeRefs, refName)) {
+			return false;
+		}
+		return !matches(excludeRefs, refName);
+	}
+
+	/**
+	 * Returns true if a push of this many commits may be posted.
+	 *
+	 * @param count
+	 * @return true if the count meets the threshold
+	 */
+	public boolean acceptsCommits(int count) {
+		return count >= minCommits;
+	}
+
+	private static boolean matches(List<Pattern> patterns, String refName) {
+		for (Pattern pattern : patterns) {
+			if (pattern.matcher(refName).matches()) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private static List<Pattern> compile(List<String> globs) {
+		List<Pattern> list = new ArrayList<Pattern>();
+		for (String glob : globs) {
+			if (!glob.isEmpty()) {
+				list.add(compileGlob(glob));
+			}
+		}
+		return list;
+	}
+
+	static Pattern compileGlob(String glob) {
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < glob.length(); i++) {
+			char c = glob.charAt(i);
+			if (c == '*') {
+				if (i + 1 < glob.length() && glob.charAt(i + 1) == '*') {
+					sb.append(".*");
+					i++;
+				} else {
+					sb.append("[^/]*");
+				}
+			} else if (c == '?') {
+				sb.append("[^/]");
+			} else {
+				sb.append(Pattern.quote(String.valueOf(c)));
+			}
+		}
+		return Pattern.compile(sb.toString());
+	}
+}
@@ -0,0 +1,41 @@
+/*
+ * Copyright 2014 gitblit.com.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.gitblit.plugin.hipchat;
+
+/**
+ * The rendering time allowed for one hook event.  Every Markdown transform
+ * of the event draws from the same deadline.
+ *
+ * @author James Moger
+ *
+ */
+public class RenderDeadline {
+
+	final long deadline;
+
+	RenderDeadline(long budget) {
+		this.deadline = System.currentTimeMillis() + budget;
+	}
+
+	/**
+	 * Returns the milliseconds left before the deadline.
+	 *
+	 * @return the remaining time, may be negative
+	 */
+	public long remaining() {
+		return deadline - System.currentTimeMillis();
+	}
+}
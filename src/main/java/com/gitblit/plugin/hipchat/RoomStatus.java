@@ -0,0 +1,91 @@
+/*
+ * Copyright 2014 gitblit.com.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.gitblit.plugin.hipchat;
+
+/**
+ * The result of validating the API token of a configured HipChat room.
+ *
+ * @author James Moger
+ *
+ */
+public class RoomStatus {
+
+	public static enum State {
+		unchecked, valid, limited, unauthorized, not_found, error;
+
+		/**
+		 * Interprets the status code of a room lookup.
+		 *
+		 * @param status
+		 * @return the room state
+		 */
+		static State fromStatus(int status) {
+			switch (status) {
+			case 200:
+				return valid;
+			case 401:
+				return unauthorized;
+			case 403:
+				// the token may send notifications but not view the room
+				return limited;
+			case 404:
+				return not_found;
+			default:
+				return error;
+			}
+		}
+	}
+
+	final String room;
+
+	final State state;
+
+	final String detail;
+
+	final long checked;
+
+	RoomStatus(String room, State state, String detail) {
+		this.room = room;
+		this.state = state;
+		this.detail = detail;
+		this.checked = System.currentTimeMillis();
+	}
+
+	public String getRoom() {
+		return room;
+	}
+
+	public State getState() {
+		return state;
+	}
+
+	public String getDetail() {
+		return detail;
+	}
+
+	public long getChecked() {
+		return checked;
+	}
+
+	/**
+	 * Returns true if notifications can be posted to the room.
+	 *
+	 * @return true if the token is usable
+	 */
+	public boolean isUsable() {
+		return state == State.valid || state == State.limited;
+	}
+}
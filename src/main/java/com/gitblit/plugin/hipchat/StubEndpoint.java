@@ -0,0 +1,99 @@
+/*
+ * Copyright 2014 gitblit.com.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.gitblit.plugin.hipchat;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.gitblit.plugin.hipchat.ExecutorStrategy.NamedThreadFactory;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * A local stand-in for the HipChat API which accepts every notification
+ * after a fixed latency.  It is used to benchmark the delivery pipeline
+ * without posting to a real room.
+ *
+ * @author James Moger
+ *
+ */
+public class StubEndpoint {
+
+	final HttpServer server;
+
+	final ExecutorService executor;
+
+	final int latency;
+
+	final AtomicLong requests;
+
+	StubEndpoint(int latency) throws IOException {
+		this.latency = Math.max(0, latency);
+		this.requests = new AtomicLong();
+		this.server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+		this.executor = Executors.newCachedThreadPool(new NamedThreadFactory("HipChat-stub"));
+		server.createContext("/", new NotificationHandler());
+		server.setExecutor(executor);
+		server.start();
+	}
+
+	/**
+	 * Returns the API url of the stub, which replaces https://api.hipchat.com/v2.
+	 *
+	 * @return the API url
+	 */
+	public String getUrl() {
+		return String.format("http://%s:%d/v2", server.getAddress().getHostString(), server.getAddress().getPort());
+	}
+
+	public long getRequests() {
+		return requests.get();
+	}
+
+	public void close() {
+		server.stop(0);
+		executor.shutdownNow();
+	}
+
+	private class NotificationHandler implements HttpHandler {
+
+		@Override
+		public void handle(HttpExchange exchange) throws IOException {
+			try {
+				InputStream is = exchange.getRequestBody();
+				byte [] buffer = new byte[4096];
+				while (is.read(buffer) > -1) {
+					// discard the notification
+				}
+				requests.incrementAndGet();
+				if (latency > 0) {
+					Thread.sleep(latency);
+				}
+				exchange.sendResponseHeaders(204, -1);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			} finally {
+				exchange.close();
+			}
+		}
+	}
+}
@@ -0,0 +1,508 @@
+/*
+ * Copyright 2014 gitblit.com.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.gitblit.plugin.hipchat;
+
+import java.io.IOException;
+import java.text.DateFormat;
+import java.text.MessageFormat;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.revwalk.RevCommit;
+import org.eclipse.jgit.revwalk.RevSort;
+import org.eclipse.jgit.revwalk.RevWalk;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.gitblit.IStoredSettings;
+import com.gitblit.Keys;
+import com.gitblit.manager.IGitblit;
+import com.gitblit.manager.IRepositoryManager;
+import com.gitblit.manager.IUserManager;
+import com.gitblit.models.TicketModel;
+import com.gitblit.models.TicketModel.Change;
+import com.gitblit.models.TicketModel.Patchset;
+import com.gitblit.models.TicketModel.Review;
+import com.gitblit.models.UserModel;
+import com.gitblit.plugin.hipchat.Payload.Color;
+import com.gitblit.plugin.hipchat.Payload.Priority;
+import com.gitblit.servlet.GitblitContext;
+import com.gitblit.utils.BugtraqProcessor;
+import com.gitblit.utils.MarkdownUtils;
+import com.gitblit.utils.StringUtils;
+
+/**
+ * Renders the messages which are posted for new and updated tickets.
+ *
+ * Users, links, bugtraq and commits are looked up through protected methods
+ * so that the {@link EventReplayer} can render recorded events, whose
+ * repositories and users may not exist, exactly like the
+ * {@link HipChatTicketHook}.
+ *
+ * @author James Moger
+ *
+ */
+public class TicketMessages {
+
+	final Logger log = LoggerFactory.getLogger(getClass());
+
+	final HipChatter hipChatter;
+
+	final IStoredSettings settings;
+
+	private final String addPattern = "<span style=\"color:darkgreen;\">+{0}</span>";
+
+	private final String delPattern = "<span style=\"color:darkred;\">-{0}</span>";
+
+	public TicketMessages(HipChatter hipChatter, IStoredSettings settings) {
+		this.hipChatter = hipChatter;
+		this.settings = settings;
+	}
+
+    /**
+     * Returns the message of a new ticket.
+     *
+     * @param ticket
+     * @param deadline the rendering deadline of the event
+     * @return the payload
+     */
+    public Payload newTicket(TicketModel ticket, RenderDeadline deadline) {
+		Set<TicketModel.Field> fieldExclusions = new HashSet<TicketModel.Field>();
+		fieldExclusions.addAll(Arrays.asList(TicketModel.Field.watchers, TicketModel.Field.voters,
+				TicketModel.Field.status, TicketModel.Field.mentions));
+
+    	Change change = ticket.changes.get(0);
+    	StringBuilder sb = new StringBuilder();
+    	sb.append(String.format("<b>%s</b> has created <b>%s</b> <a href=\"%s\">ticket-%s</a>", getDisplayName(change.author),
+    			StringUtils.stripDotGit(ticket.repository), getUrl(ticket), ticket.number));
+
+    	fields(sb, ticket, change, fieldExclusions, deadline);
+
+    	Payload payload = Payload.html(sb.toString());
+    	payload.color(Color.purple);
+    	payload.priority(Priority.normal);
+    	payload.url(getUrl(ticket));
+    	return payload;
+    }
+
+    /**
+     * Returns the message of a ticket change.
+     *
+     * @param ticket
+     * @param change
+     * @param deadline the rendering deadline of the event
+     * @return the payload or null if the change is not reported
+     */
+    public Payload updateTicket(TicketModel ticket, Change change, RenderDeadline deadline) {
+		Set<TicketModel.Field> fieldExclusions = new HashSet<TicketModel.Field>();
+		fieldExclusions.addAll(Arrays.asList(TicketModel.Field.watchers, TicketModel.Field.voters,
+				TicketModel.Field.mentions, TicketModel.Field.title, TicketModel.Field.body,
+				TicketModel.Field.mergeSha));
+
+		String author = "<b>" + getDisplayName(change.author) + "</b>";
+		String url = String.format("<a href=\"%s\">ticket-%s</a>", getUrl(ticket), ticket.number);
+		String repo = "<b>" + StringUtils.stripDotGit(ticket.repository) + "</b>";
+		String msg = null;
+
+		if (change.hasReview()) {
+			/*
+			 * Patchset review
+			 */
+			StringBuilder sb = new StringBuilder();
+    		sb.append(String.format("%s has reviewed %s %s patchset %s-%s", author, repo, url,
+    				change.review.patchset, change.review.rev));
+    		sb.append("<p/>");
+
+    		Review review = change.review;
+    		String d = settings.getString(Keys.web.datestampShortFormat, "yyyy-MM-dd");
+			String t = settings.getString(Keys.web.timeFormat, "HH:mm");
+			DateFormat df = new SimpleDateFormat(d + " " + t);
+			List<Change> reviews = ticket.getReviews(ticket.getPatchset(review.patchset, review.rev));
+			sb.append("<table><thead<tr><th>Date</th><th>Reviewer</th><th>Score</th><th>Description</th></tr></thead><tbody>\n");
+			for (Change c : reviews) {
+				String name = getDisplayName(c.author);
+				String score;
+				switch (c.review.score) {
+				case approved:
+					score = MessageFormat.format(addPattern, c.review.score.getValue());
+					break;
+				case vetoed:
+					score = MessageFormat.format(delPattern, Math.abs(c.review.score.getValue()));
+					break;
+				default:
+					score = "" + c.review.score.getValue();
+				}
+				String date = df.format(c.date);
+				sb.append(String.format("<tr><td>%1$s</td><td>%2$s</td><td>%3$s</td><td>%4$s</td></tr>\n",
+						date, name, score, c.review.score.toString()));
+			}
+			sb.append("</tbody></table>");
+			msg = sb.toString();
+
+		} else if (change.hasPatchset()) {
+			/*
+			 * New Patchset
+			 */
+			String tip = change.patchset.tip;
+			String base;
+			String leadIn;
+			if (change.patchset.rev == 1) {
+				if (change.patchset.number == 1) {
+					/*
+					 * Initial proposal
+					 */
+					leadIn = String.format("%s has pushed a proposal for %s %s", author, repo, url);
+				} else {
+					/*
+					 * Rewritten patchset
+					 */
+					leadIn = String.format("%s has rewritten the patchset for %s %s (%s)",
+							author, repo, url, change.patchset.type);
+				}
+				base = change.patchset.base;
+			} else {
+				/*
+				 * Fast-forward patchset update
+				 */
+				leadIn = String.format("%s has added %s %s to %s %s", author, change.patchset.added,
+						change.patchset.added == 1 ? "commit" : "commits", repo, url);
+				Patchset prev = ticket.getPatchset(change.patchset.number, change.patchset.rev - 1);
+				base = prev.tip;
+			}
+
+			StringBuilder sb = new StringBuilder();
+			sb.append(leadIn);
+
+			// show the fields above the commit list
+			fields(sb, ticket, change, fieldExclusions, deadline);
+
+			// abbreviated commit list
+			commits(sb, ticket, change, base, tip);
+
+			msg = sb.toString();
+
+		} else if (change.isMerge()) {
+			/*
+			 * Merged
+			 */
+			msg = String.format("%s has merged %s %s to <b>%s</b>", author, repo, url, ticket.mergeTo);
+		} else if (change.isStatusChange()) {
+			/*
+			 * Status Change
+			 */
+			msg = String.format("%s has changed the status of %s %s", author, repo, url);
+		} else if (change.hasComment() && settings.getBoolean(Plugin.SETTING_POST_TICKET_COMMENTS, true)) {
+			/*
+			 * Comment
+			 */
+			StringBuilder sb = new StringBuilder();
+			sb.append(String.format("%s has commented on %s %s", author, repo, url));
+			sb.append(String.format("<br/><table><tbody><tr><th>%s</th><td>%s</td></tr></tbody></table><br/>",
+					TicketModel.Field.title.toString(), StringUtils.escapeForHtml(ticket.title, false)));
+			msg = sb.toString();
+		}
+
+		if (msg == null) {
+			// not a change we are reporting
+			return null;
+		}
+
+		Color color = Color.gray;
+    	if (change.isStatusChange()) {
+    		// status change
+    		switch (ticket.status) {
+    		case Abandoned:
+    		case Declined:
+    		case Invalid:
+    		case Wontfix:
+    		case Duplicate:
+    			color= Color.red;
+    			break;
+    		case On_Hold:
+    			color = Color.yellow;
+    			break;
+    		case Closed:
+    		case Fixed:
+    		case Merged:
+    		case Resolved:
+    			color = Color.green;
+    			break;
+    		default:
+    			break;
+    		}
+    	} else if (change.hasComment()) {
+    		color = Color.yellow;
+    	}
+
+		StringBuilder sb = new StringBuilder();
+		sb.append(msg);
+
+		// fields on patchset changes are output above this point
+		if (!change.hasPatchset()) {
+			fields(sb, ticket, change, fieldExclusions, deadline);
+		}
+
+    	Payload payload = Payload.html(sb.toString());
+		payload.setColor(color);
+		payload.setUrl(getUrl(ticket));
+		if (change.isMerge() || change.isStatusChange()) {
+			payload.setPriority(Priority.high);
+		} else {
+			payload.setPriority(Priority.normal);
+		}
+		return payload;
+    }
+
+    protected void fields(StringBuilder sb, TicketModel ticket, Change change, Set<TicketModel.Field> fieldExclusions,
+    		RenderDeadline deadline) {
+    	Map<TicketModel.Field, String> filtered = new HashMap<TicketModel.Field, String>();
+    	if (change.hasFieldChanges()) {
+    		for (Map.Entry<TicketModel.Field, String> fc : change.fields.entrySet()) {
+    			if (!fieldExclusions.contains(fc.getKey())) {
+    				// field is included
+    				filtered.put(fc.getKey(), fc.getValue());
+    			}
+    		}
+    	}
+
+    	if (change.hasComment() && settings.getBoolean(Plugin.SETTING_POST_TICKET_COMMENTS, true)) {
+    		// transform Markdown comment
+    		sb.append("<br/>\n");
+    		String comment = renderMarkdown(change.comment.text, ticket.repository, getBudget(sb), deadline);
+    		sb.append(comment);
+
+    		// title has already been rendered
+    		filtered.remove(TicketModel.Field.title);
+    	}
+
+    	// ensure we have some basic context fields
+    	if (!filtered.containsKey(TicketModel.Field.title)) {
+    		filtered.put(TicketModel.Field.title, ticket.title);
+    	}
+
+    	// sort by field ordinal
+    	List<TicketModel.Field> fields = new ArrayList<TicketModel.Field>(filtered.keySet());
+    	Collections.sort(fields);
+
+    	if (fields.size() > 0) {
+			sb.append("\n<table><tbody>\n");
+			for (TicketModel.Field field : fields) {
+				String value;
+				if (filtered.get(field) == null) {
+					continue;
+				} else {
+					value = filtered.get(field);
+
+					if (TicketModel.Field.body == field) {
+						// transform the body to html
+						value = renderMarkdown(value, ticket.repository, getBudget(sb), deadline);
+					} else if (TicketModel.Field.topic == field) {
+						// link bugtraq matches
+						value = renderBugtraq(value, ticket.repository);
+    				} else if (TicketModel.Field.responsible == field) {
+    					// lookup display name of the user
+    					value = getDisplayName(value);
+    				} else {
+    					value = StringUtils.escapeForHtml(value, false);
+    				}
+				}
+				sb.append(String.format("<tr><td><b>%1$s:<b/></td><td>%2$s</td></tr>\n", field.name(), value));
+			}
+			sb.append("</tbody></table>\n");
+    	}
+    }
+
+    /**
+     * Returns the number of characters left for the message being built.
+     *
+     * @param sb
+     * @return the remaining message budget
+     */
+    protected int getBudget(StringBuilder sb) {
+    	return Math.max(0, hipChatter.getMaxMessageLength() - sb.length());
+    }
+
+    /**
+     * Renders Markdown as html.  Input beyond the remaining message budget
+     * would be truncated anyway so it is cut before the transform.  If the
+     * transform does not finish before the event deadline the Markdown is
+     * rendered as escaped text instead.
+     *
+     * @param markdown
+     * @param repository
+     * @param budget the remaining message budget
+     * @param deadline the rendering deadline of the event
+     * @return html
+     */
+    protected String renderMarkdown(String markdown, final String repository, int budget, RenderDeadline deadline) {
+    	if (StringUtils.isEmpty(markdown)) {
+    		return markdown;
+    	}
+
+    	if (markdown.length() > budget) {
+    		// cut at the last line break that fits the budget
+    		int cut = markdown.lastIndexOf('\n', budget);
+    		if (cut < budget / 2) {
+    			cut = budget;
+    		}
+    		markdown = markdown.substring(0, cut) + "\n\n" + MessageTruncator.ELLIPSIS;
+    	}
+
+    	final String input = markdown;
+    	String html = hipChatter.getMarkdownRenderer().render(input, new Callable<String>() {
+			@Override
+			public String call() {
+				// transform the body to html and strip paragraph tags
+				String bugtraq = renderBugtraq(input, repository);
+				String transformed = MarkdownUtils.transformGFM(settings, bugtraq, repository);
+				return MarkdownRenderer.stripParagraphs(transformed);
+			}
+		}, deadline.remaining());
+
+    	if (html == null) {
+    		return MarkdownRenderer.renderText(input);
+    	}
+		return html;
+    }
+
+    protected String renderBugtraq(String value, String repository) {
+    	if (StringUtils.isEmpty(value)) {
+    		return value;
+    	}
+
+    	IRepositoryManager repositoryManager = GitblitContext.getManager(IRepositoryManager.class);
+		Repository db = repositoryManager.getRepository(repository);
+		try {
+			BugtraqProcessor bugtraq = new BugtraqProcessor(settings);
+			value = bugtraq.processText(db, repository, value);
+		} finally {
+			db.close();
+		}
+		return value;
+    }
+
+    protected String getDisplayName(String username) {
+    	if (StringUtils.isEmpty(username)) {
+    		return username;
+    	}
+
+		IUserManager userManager = GitblitContext.getManager(IUserManager.class);
+		UserModel user = userManager.getUserModel(username);
+		if (user != null) {
+			String displayName = user.getDisplayName();
+			if (!StringUtils.isEmpty(displayName) && !username.equals(displayName)) {
+				return displayName;
+			}
+		}
+		return username;
+    }
+
+    protected String getUrl(TicketModel ticket) {
+    	return GitblitContext.getManager(IGitblit.class).getTicketService().getTicketUrl(ticket);
+    }
+
+    /**
+     * Returns a link appropriate for the push.
+     *
+     * If both new and old ids are null, the summary page link is returned.
+     *
+     * @param repo
+     * @param oldId
+     * @param newId
+     * @return a link
+     */
+    protected String getUrl(String repo, String oldId, String newId) {
+		String canonicalUrl = settings.getString(Keys.web.canonicalUrl, "https://localhost:8443");
+
+		if (oldId == null && newId != null) {
+			// create
+			final String hrefPattern = "{0}/commit?r={1}&h={2}";
+			return MessageFormat.format(hrefPattern, canonicalUrl, repo, newId);
+		} else if (oldId != null && newId == null) {
+			// log
+			final String hrefPattern = "{0}/log?r={1}&h={2}";
+			return MessageFormat.format(hrefPattern, canonicalUrl, repo, oldId);
+		} else if (oldId != null && newId != null) {
+			// update/compare
+			final String hrefPattern = "{0}/compare?r={1}&h={2}..{3}";
+			return MessageFormat.format(hrefPattern, canonicalUrl, repo, oldId, newId);
+		} else if (oldId == null && newId == null) {
+			// summary page
+			final String hrefPattern = "{0}/summary?r={1}";
+			return MessageFormat.format(hrefPattern, canonicalUrl, repo);
+		}
+
+		return null;
+    }
+
+    /**
+     * Appends the abbreviated commit list of a patchset.
+     *
+     * @param sb
+     * @param ticket
+     * @param change
+     * @param base
+     * @param tip
+     */
+    protected void commits(StringBuilder sb, TicketModel ticket, Change change, String base, String tip) {
+		List<RevCommit> commits = getCommits(ticket.repository, base, tip);
+		int shortIdLen = settings.getInteger(Keys.web.shortCommitIdLength, 6);
+		List<String> rows = new ArrayList<String>();
+		for (int i = 0; i < Math.min(PushMessages.MAX_COMMITS, commits.size()); i++) {
+			RevCommit commit = commits.get(i);
+			rows.add(PushMessages.row(commit, getUrl(ticket.repository, null, commit.getName()), shortIdLen));
+		}
+		PushMessages.commits(sb, rows, commits.size(), getUrl(ticket.repository, base, tip));
+		sb.append('\n');
+    }
+
+	private List<RevCommit> getCommits(String repositoryName, String baseId, String tipId) {
+		IRepositoryManager repositoryManager = GitblitContext.getManager(IRepositoryManager.class);
+		List<RevCommit> list = new ArrayList<RevCommit>();
+		try (Repository db = repositoryManager.getRepository(repositoryName)) {
+			try (RevWalk walk = new RevWalk(db)) {
+				walk.reset();
+				walk.sort(RevSort.TOPO);
+				walk.sort(RevSort.REVERSE, true);
+				RevCommit tip = walk.parseCommit(db.resolve(tipId));
+				RevCommit base = walk.parseCommit(db.resolve(baseId));
+				walk.markStart(tip);
+				walk.markUninteresting(base);
+				for (;;) {
+					RevCommit c = walk.next();
+					if (c == null) {
+						break;
+					}
+					list.add(c);
+				}
+			} catch (IOException e) {
+				// Should never happen, the core receive process would have
+				// identified the missing object earlier before we got control.
+				log.error("failed to get commits", e);
+			}
+		}
+		return list;
+	}
+}
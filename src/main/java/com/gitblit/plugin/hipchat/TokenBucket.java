@@ -0,0 +1,83 @@
+/*
+ * Copyright 2014 gitblit.com.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.gitblit.plugin.hipchat;
+
+/**
+ * A token bucket which admits bursts of up to its capacity and refills at a
+ * steady rate.
+ *
+ * @author James Moger
+ *
+ */
+public class TokenBucket {
+
+	final int capacity;
+
+	final double refillPerMilli;
+
+	private double tokens;
+
+	private long updated;
+
+	/**
+	 * @param capacity the largest burst
+	 * @param perHour the sustained number of tokens per hour
+	 */
+	TokenBucket(int capacity, int perHour) {
+		this.capacity = Math.max(1, capacity);
+		this.refillPerMilli = perHour / 3600000d;
+		this.tokens = this.capacity;
+		this.updated = System.currentTimeMillis();
+	}
+
+	/**
+	 * Takes a token if one is available.
+	 *
+	 * @return true if a token was taken
+	 */
+	public synchronized boolean tryAcquire() {
+		refill();
+		if (tokens >= 1) {
+			tokens--;
+			return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Returns a token which was taken but not used.
+	 */
+	public synchronized void refund() {
+		tokens = Math.min(capacity, tokens + 1);
+	}
+
+	/**
+	 * Returns true if the bucket has refilled completely, so it may be
+	 * discarded.
+	 *
+	 * @return true if the bucket is full
+	 */
+	public synchronized boolean isFull() {
+		refill();
+		return tokens >= capacity;
+	}
+
+	private void refill() {
+		long now = System.currentTimeMillis();
+		tokens = Math.min(capacity, tokens + (now - updated) * refillPerMilli);
+		updated = now;
+	}
+}
@@ -0,0 +1,103 @@
+/*
+ * Copyright 2014 gitblit.com.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.gitblit.plugin.hipchat;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+/**
+ * Tests the permits and the limit adjustments of the adaptive limiter.
+ *
+ * @author James Moger
+ *
+ */
+public class AdaptiveLimiterTest {
+
+	@Test
+	public void testPermits() {
+		AdaptiveLimiter limiter = new AdaptiveLimiter(2, 1, 10, 1000);
+		assertTrue(limiter.tryAcquire());
+		assertTrue(limiter.tryAcquire());
+		assertFalse(limiter.tryAcquire());
+		assertEquals(2, limiter.getInFlight());
+
+		// a cancelled permit is returned without changing the limit
+		limiter.cancel();
+		assertEquals(1, limiter.getInFlight());
+		assertEquals(2, limiter.getLimit());
+		assertTrue(limiter.tryAcquire());
+	}
+
+	@Test
+	public void testIncreaseWhenSaturated() {
+		AdaptiveLimiter limiter = new AdaptiveLimiter(2, 1, 3, 1000);
+		limiter.tryAcquire();
+		limiter.onSuccess(10);
+		assertEquals(3, limiter.getLimit());
+
+		// never above the maximum
+		limiter.tryAcquire();
+		limiter.tryAcquire();
+		limiter.onSuccess(10);
+		assertEquals(3, limiter.getLimit());
+		assertEquals(1, limiter.getInFlight());
+	}
+
+	@Test
+	public void testNoIncreaseWhenIdle() {
+		AdaptiveLimiter limiter = new AdaptiveLimiter(10, 1, 20, 1000);
+		limiter.tryAcquire();
+		limiter.onSuccess(10);
+		assertEquals(10, limiter.getLimit());
+		assertEquals(0, limiter.getInFlight());
+	}
+
+	@Test
+	public void testDecreaseWhenSlow() {
+		AdaptiveLimiter limiter = new AdaptiveLimiter(10, 1, 20, 1000);
+		for (int i = 0; i < 10; i++) {
+			limiter.tryAcquire();
+		}
+		limiter.onSuccess(2000);
+		assertEquals(9, limiter.getLimit());
+		assertEquals(9, limiter.getInFlight());
+	}
+
+	@Test
+	public void testDecreaseWhenDropped() {
+		AdaptiveLimiter limiter = new AdaptiveLimiter(10, 4, 20, 1000);
+		for (int i = 0; i < 10; i++) {
+			limiter.tryAcquire();
+		}
+		for (int i = 0; i < 10; i++) {
+			limiter.onDropped();
+		}
+		assertEquals(0, limiter.getInFlight());
+
+		// never below the minimum
+		assertEquals(4, limiter.getLimit());
+	}
+
+	@Test
+	public void testInitialLimitIsBounded() {
+		assertEquals(5, new AdaptiveLimiter(50, 1, 5, 1000).getLimit());
+		assertEquals(2, new AdaptiveLimiter(0, 2, 5, 1000).getLimit());
+		assertEquals(3, new AdaptiveLimiter(1, 3, 2, 1000).getLimit());
+	}
+}
@@ -0,0 +1,97 @@
+/*
+ * Copyright 2014 gitblit.com.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.gitblit.plugin.hipchat;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import com.gitblit.plugin.hipchat.CircuitBreaker.State;
+
+/**
+ * Tests the state transitions of the circuit breaker.
+ *
+ * @author James Moger
+ *
+ */
+public class CircuitBreakerTest {
+
+	@Test
+	public void testOpensAfterThreshold() {
+		CircuitBreaker breaker = new CircuitBreaker("room", 3, 60000);
+		assertFalse(breaker.onFailure());
+		assertFalse(breaker.onFailure());
+		assertEquals(State.closed, breaker.getState());
+		assertTrue(breaker.allowRequest());
+
+		assertTrue(breaker.onFailure());
+		assertEquals(State.open, breaker.getState());
+		assertFalse(breaker.allowRequest());
+		assertFalse(breaker.allowRequest());
+		assertEquals(2, breaker.getRejected());
+
+		// further failures do not reopen an open breaker
+		assertFalse(breaker.onFailure());
+	}
+
+	@Test
+	public void testSuccessResetsFailures() {
+		CircuitBreaker breaker = new CircuitBreaker("room", 2, 60000);
+		assertFalse(breaker.onFailure());
+		assertFalse(breaker.onSuccess());
+		assertEquals(0, breaker.getFailures());
+		assertFalse(breaker.onFailure());
+		assertEquals(State.closed, breaker.getState());
+	}
+
+	@Test
+	public void testProbeCloses() throws InterruptedException {
+		CircuitBreaker breaker = new CircuitBreaker("room", 1, 50);
+		assertTrue(breaker.onFailure());
+		assertFalse(breaker.allowRequest());
+
+		Thread.sleep(100);
+		assertTrue(breaker.allowRequest());
+		assertEquals(State.half_open, breaker.getState());
+
+		// only one probe is in flight
+		assertFalse(breaker.allowRequest());
+
+		assertTrue(breaker.onSuccess());
+		assertEquals(State.closed, breaker.getState());
+		assertTrue(breaker.allowRequest());
+	}
+
+	@Test
+	public void testProbeReopens() throws InterruptedException {
+		CircuitBreaker breaker = new CircuitBreaker("room", 3, 50);
+		for (int i = 0; i < 3; i++) {
+			breaker.onFailure();
+		}
+		long openedAt = breaker.getOpenedAt();
+
+		Thread.sleep(100);
+		assertTrue(breaker.allowRequest());
+
+		// a failed probe opens the breaker again without waiting for the threshold
+		assertTrue(breaker.onFailure());
+		assertEquals(State.open, breaker.getState());
+		assertTrue(breaker.getOpenedAt() > openedAt);
+		assertFalse(breaker.allowRequest());
+	}
+}
@@ -0,0 +1,72 @@
+/*
+ * Copyright 2014 gitblit.com.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.gitblit.plugin.hipchat;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+/**
+ * Tests the duplicate detection, expiry and bound of the dedup window.
+ *
+ * @author James Moger
+ *
+ */
+public class DedupWindowTest {
+
+	@Test
+	public void testDuplicates() {
+		DedupWindow dedup = new DedupWindow(60000, 100);
+		assertFalse(dedup.isDuplicate("room", "message"));
+		assertTrue(dedup.isDuplicate("room", "message"));
+		assertFalse(dedup.isDuplicate("other", "message"));
+		assertFalse(dedup.isDuplicate("room", "other message"));
+		assertEquals(3, dedup.size());
+	}
+
+	@Test
+	public void testRoomAndMessageAreSeparated() {
+		DedupWindow dedup = new DedupWindow(60000, 100);
+		assertFalse(dedup.isDuplicate("ab", "c"));
+		assertFalse(dedup.isDuplicate("a", "bc"));
+		assertFalse(dedup.isDuplicate(null, "message"));
+		assertTrue(dedup.isDuplicate("", "message"));
+	}
+
+	@Test
+	public void testExpiry() throws InterruptedException {
+		DedupWindow dedup = new DedupWindow(50, 100);
+		assertFalse(dedup.isDuplicate("room", "message"));
+		Thread.sleep(100);
+		assertFalse(dedup.isDuplicate("room", "message"));
+		assertEquals(1, dedup.size());
+	}
+
+	@Test
+	public void testMaxEntries() {
+		DedupWindow dedup = new DedupWindow(60000, 2);
+		assertFalse(dedup.isDuplicate("room", "1"));
+		assertFalse(dedup.isDuplicate("room", "2"));
+		assertFalse(dedup.isDuplicate("room", "3"));
+		assertEquals(2, dedup.size());
+
+		// the eldest message was forgotten
+		assertTrue(dedup.isDuplicate("room", "3"));
+		assertFalse(dedup.isDuplicate("room", "1"));
+	}
+}
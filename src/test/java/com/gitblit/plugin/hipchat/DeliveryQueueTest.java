@@ -0,0 +1,207 @@
+/*
+ * Copyright 2014 gitblit.com.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.gitblit.plugin.hipchat;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import com.gitblit.plugin.hipchat.Payload.Priority;
+
+/**
+ * Tests the lanes, the repository flows and the bounds of the delivery queue.
+ *
+ * @author James Moger
+ *
+ */
+public class DeliveryQueueTest {
+
+	static Delivery delivery(Priority priority, String repository, int length) {
+		Payload payload = Payload.text("test").priority(priority);
+		payload.setRepository(repository);
+		return new Delivery(payload, "room", "room", "https://api.hipchat.com/v2/room/room/notification", new byte[length]);
+	}
+
+	@Test
+	public void testLaneWeights() {
+		DeliveryQueue queue = new DeliveryQueue(8, 4, 1, 0, 0);
+		for (int i = 0; i < 130; i++) {
+			for (Priority priority : Priority.values()) {
+				queue.offer(delivery(priority, "repo", 10), 1);
+			}
+		}
+
+		// every lane is backlogged, so 130 polls are served 80:40:10
+		int [] served = new int[Priority.values().length];
+		for (int i = 0; i < 130; i++) {
+			served[queue.poll().getPayload().getPriority().ordinal()]++;
+		}
+		assertEquals(80, served[Priority.high.ordinal()]);
+		assertEquals(40, served[Priority.normal.ordinal()]);
+		assertEquals(10, served[Priority.low.ordinal()]);
+	}
+
+	@Test
+	public void testLowLaneIsNotStarved() {
+		DeliveryQueue queue = new DeliveryQueue(8, 4, 1, 0, 0);
+		for (int i = 0; i < 100; i++) {
+			queue.offer(delivery(Priority.high, "repo", 10), 1);
+		}
+		queue.offer(delivery(Priority.low, "repo", 10), 1);
+
+		// the low delivery is sent within one round of the weights
+		for (int i = 0; i < 9; i++) {
+			queue.poll();
+		}
+		assertEquals(0, queue.size(Priority.low));
+	}
+
+	@Test
+	public void testEmptyLanesAreSkipped() {
+		DeliveryQueue queue = new DeliveryQueue(8, 4, 1, 0, 0);
+		for (int i = 0; i < 5; i++) {
+			queue.offer(delivery(Priority.low, "repo", 10), 1);
+		}
+		for (int i = 0; i < 5; i++) {
+			assertEquals(Priority.low, queue.poll().getPayload().getPriority());
+		}
+		assertNull(queue.poll());
+		assertEquals(0, queue.size());
+		assertEquals(0, queue.bytes());
+	}
+
+	@Test
+	public void testRepositoryFairness() {
+		DeliveryQueue queue = new DeliveryQueue(8, 4, 1, 0, 0);
+		for (int i = 0; i < 100; i++) {
+			queue.offer(delivery(Priority.normal, "noisy", 10), 1);
+		}
+		for (int i = 0; i < 3; i++) {
+			queue.offer(delivery(Priority.normal, "quiet", 10), 1);
+		}
+		assertEquals(2, queue.flows());
+
+		// the quiet repository alternates with the noisy backlog
+		String [] expected = { "noisy", "quiet", "noisy", "quiet", "noisy", "quiet", "noisy", "noisy" };
+		for (String repository : expected) {
+			assertEquals(repository, queue.poll().getPayload().getRepository());
+		}
+		assertEquals(1, queue.flows());
+	}
+
+	@Test
+	public void testRepositoryWeights() {
+		DeliveryQueue queue = new DeliveryQueue(8, 4, 1, 0, 0);
+		for (int i = 0; i < 10; i++) {
+			queue.offer(delivery(Priority.normal, "heavy", 10), 3);
+			queue.offer(delivery(Priority.normal, "light", 10), 1);
+		}
+
+		String [] expected = { "heavy", "heavy", "heavy", "light", "heavy", "heavy", "heavy", "light" };
+		for (String repository : expected) {
+			assertEquals(repository, queue.poll().getPayload().getRepository());
+		}
+	}
+
+	@Test
+	public void testRepositoryOrder() {
+		DeliveryQueue queue = new DeliveryQueue(8, 4, 1, 0, 0);
+		Delivery [] deliveries = new Delivery[6];
+		for (int i = 0; i < deliveries.length; i++) {
+			deliveries[i] = delivery(Priority.normal, i % 2 == 0 ? "a" : "b", 10);
+			queue.offer(deliveries[i], 1);
+		}
+
+		// each repository is delivered in the order it was queued
+		for (Delivery delivery : deliveries) {
+			assertSame(delivery, queue.poll());
+		}
+	}
+
+	@Test
+	public void testByteBound() {
+		int size = delivery(Priority.normal, "repo", 1000).size();
+		DeliveryQueue queue = new DeliveryQueue(8, 4, 1, 0, 3 * size);
+		for (int i = 0; i < 3; i++) {
+			assertTrue(queue.offer(delivery(Priority.normal, "repo", 1000), 1));
+		}
+		assertFalse(queue.offer(delivery(Priority.normal, "repo", 1000), 1));
+		assertFalse(queue.offer(delivery(Priority.normal, "other", 0), 1));
+		assertEquals(3 * size, queue.bytes());
+
+		queue.poll();
+		assertEquals(2 * size, queue.bytes());
+		assertTrue(queue.offer(delivery(Priority.normal, "repo", 1000), 1));
+	}
+
+	@Test
+	public void testRemaining() {
+		DeliveryQueue queue = new DeliveryQueue(8, 4, 1, 3, 0);
+		assertEquals(3, queue.remaining());
+		queue.offer(delivery(Priority.normal, "repo", 10), 1);
+		queue.offer(delivery(Priority.low, "repo", 10), 1);
+		assertEquals(1, queue.remaining());
+		queue.offer(delivery(Priority.low, "repo", 10), 1);
+		assertEquals(0, queue.remaining());
+		assertFalse(queue.offer(delivery(Priority.high, "repo", 10), 1));
+
+		queue.poll();
+		assertEquals(1, queue.remaining());
+	}
+
+	@Test
+	public void testOversizedDeliveryIsAcceptedWhenEmpty() {
+		DeliveryQueue queue = new DeliveryQueue(8, 4, 1, 0, 100);
+		assertTrue(queue.offer(delivery(Priority.normal, "repo", 1000), 1));
+		assertFalse(queue.offer(delivery(Priority.normal, "repo", 0), 1));
+	}
+
+	@Test
+	public void testEviction() {
+		int size = delivery(Priority.normal, "repo", 1000).size();
+		DeliveryQueue queue = new DeliveryQueue(8, 4, 1, 0, 4 * size);
+		Delivery high = delivery(Priority.high, "a", 1000);
+		Delivery quiet = delivery(Priority.low, "a", 1000);
+		Delivery oldest = delivery(Priority.low, "b", 1000);
+		Delivery newest = delivery(Priority.low, "b", 1000);
+		queue.offer(high, 1);
+		queue.offer(quiet, 1);
+		queue.offer(oldest, 1);
+		queue.offer(newest, 1);
+		assertFalse(queue.offer(delivery(Priority.normal, "c", 1000), 1));
+
+		// the oldest delivery of the longest flow of the lowest lane goes first
+		assertSame(oldest, queue.evict(Priority.normal));
+		assertEquals(3 * size, queue.bytes());
+		Delivery normal = delivery(Priority.normal, "c", 1000);
+		assertTrue(queue.offer(normal, 1));
+
+		assertSame(quiet, queue.evict(Priority.normal));
+		assertSame(newest, queue.evict(Priority.normal));
+		assertSame(normal, queue.evict(Priority.normal));
+
+		// a delivery never evicts a more urgent one
+		assertNull(queue.evict(Priority.normal));
+		assertEquals(1, queue.size());
+		assertEquals(size, queue.bytes());
+		assertSame(high, queue.evict(Priority.high));
+		assertEquals(0, queue.bytes());
+	}
+}
@@ -0,0 +1,131 @@
+/*
+ * Copyright 2014 gitblit.com.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.gitblit.plugin.hipchat;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.junit.Test;
+
+/**
+ * Tests that truncated messages fit the HipChat limit and remain well-formed.
+ *
+ * @author James Moger
+ *
+ */
+public class MessageTruncatorTest {
+
+	static final int MAX = MessageTruncator.HIPCHAT_MAX_LENGTH;
+
+	static final Pattern TAG = Pattern.compile("<(/?)([a-z]+)[^>]*>");
+
+	/**
+	 * Asserts that every element is closed in order and that no tag or
+	 * entity was cut.
+	 */
+	static void assertWellFormed(String html) {
+		Deque<String> open = new ArrayDeque<String>();
+		Matcher m = TAG.matcher(html);
+		while (m.find()) {
+			String tag = m.group(2);
+			if (m.group(1).isEmpty()) {
+				if (!MessageTruncator.VOID_TAGS.contains(tag)) {
+					open.push(tag);
+				}
+			} else {
+				assertEquals(html, open.pop(), tag);
+			}
+		}
+		assertTrue(html, open.isEmpty());
+
+		String text = TAG.matcher(html).replaceAll("");
+		assertTrue(html, text.indexOf('<') < 0 && text.indexOf('>') < 0);
+		assertTrue(html, text.replaceAll("&[a-z]+;|&#[0-9]+;", "").indexOf('&') < 0);
+	}
+
+	@Test
+	public void testShortMessagesAreUnchanged() {
+		String html = "<b>short</b> message";
+		assertSame(html, MessageTruncator.truncateHtml(html, MAX, MessageTruncator.getSuffix(null)));
+		assertSame(html, MessageTruncator.truncateText(html, MAX));
+		assertNull(MessageTruncator.truncateText(null, MAX));
+		assertNull(MessageTruncator.truncateHtml(null, MAX, ""));
+	}
+
+	@Test
+	public void testText() {
+		StringBuilder sb = new StringBuilder();
+		while (sb.length() <= MAX) {
+			sb.append("word ");
+		}
+		String text = MessageTruncator.truncateText(sb.toString(), MAX);
+		assertTrue(text.length() <= MAX);
+		assertTrue(text.endsWith("word" + MessageTruncator.ELLIPSIS));
+	}
+
+	@Test
+	public void testTableIsCutAtRow() {
+		StringBuilder sb = new StringBuilder("<table>");
+		for (int i = 0; sb.length() <= MAX; i++) {
+			sb.append("<tr><td><a href=\"commit/").append(i).append("\">").append(i).append("</a></td><td>fix &amp; test</td></tr>");
+		}
+		sb.append("</table>");
+
+		String suffix = MessageTruncator.getSuffix("https://gitblit/log");
+		String html = MessageTruncator.truncateHtml(sb.toString(), MAX, suffix);
+		assertTrue(html.length() <= MAX);
+		assertTrue(html.endsWith("</td></tr></table>" + suffix));
+		assertWellFormed(html.substring(0, html.length() - suffix.length()));
+	}
+
+	@Test
+	public void testEntitiesAreNotSplit() {
+		StringBuilder sb = new StringBuilder("<p>");
+		while (sb.length() <= 2 * MAX) {
+			sb.append("&lt;&amp;&#8230;");
+		}
+		sb.append("</p>");
+
+		// every cut position within the last entities must leave them whole
+		for (int max = MAX - 20; max <= MAX; max++) {
+			String html = MessageTruncator.truncateHtml(sb.toString(), max, MessageTruncator.ELLIPSIS);
+			assertTrue(html.length() <= max);
+			assertTrue(html.endsWith("</p>" + MessageTruncator.ELLIPSIS));
+			assertWellFormed(html.substring(0, html.length() - 1));
+		}
+	}
+
+	@Test
+	public void testNestedElementsAreClosed() {
+		StringBuilder sb = new StringBuilder("<div><ul>");
+		while (sb.length() <= MAX) {
+			sb.append("<li><i>a <b>long</b> list item</i> <br/>with a break</li>");
+		}
+		sb.append("</ul></div>");
+
+		String html = MessageTruncator.truncateHtml(sb.toString(), MAX, "");
+		assertTrue(html.length() <= MAX);
+		assertTrue(html.endsWith("</li></ul></div>"));
+		assertWellFormed(html);
+	}
+}
@@ -0,0 +1,119 @@
+/*
+ * Copyright 2014 gitblit.com.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.gitblit.plugin.hipchat;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Test;
+
+/**
+ * Tests the ref globs, pusher rules and commit threshold of the ref filter.
+ *
+ * @author James Moger
+ *
+ */
+public class RefFilterTest {
+
+	static final List<String> NONE = Collections.emptyList();
+
+	static RefFilter filter(List<String> include, List<String> exclude) {
+		return new RefFilter(true, true, include, exclude, NONE, 0);
+	}
+
+	@Test
+	public void testSingleStar() {
+		RefFilter filter = filter(Arrays.asList("refs/heads/release/*"), NONE);
+		assertTrue(filter.acceptsRef("refs/heads/release/1.0"));
+		assertFalse(filter.acceptsRef("refs/heads/release/1.0/hotfix"));
+		assertFalse(filter.acceptsRef("refs/heads/master"));
+	}
+
+	@Test
+	public void testDoubleStar() {
+		RefFilter filter = filter(NONE, Arrays.asList("refs/heads/wip/**"));
+		assertTrue(filter.acceptsRef("refs/heads/master"));
+		assertTrue(filter.acceptsRef("refs/heads/wipe"));
+		assertFalse(filter.acceptsRef("refs/heads/wip/topic"));
+		assertFalse(filter.acceptsRef("refs/heads/wip/james/topic"));
+	}
+
+	@Test
+	public void testQuestionMark() {
+		RefFilter filter = filter(Arrays.asList("refs/tags/v?"), NONE);
+		assertTrue(filter.acceptsRef("refs/tags/v1"));
+		assertFalse(filter.acceptsRef("refs/tags/v10"));
+		assertFalse(filter.acceptsRef("refs/tags/v/"));
+	}
+
+	@Test
+	public void testSpecialCharactersAreLiteral() {
+		RefFilter filter = filter(Arrays.asList("refs/heads/feature.x+1"), NONE);
+		assertTrue(filter.acceptsRef("refs/heads/feature.x+1"));
+		assertFalse(filter.acceptsRef("refs/heads/featureXx+1"));
+		assertFalse(filter.acceptsRef("refs/heads/feature.xx1"));
+	}
+
+	@Test
+	public void testExcludeWinsOverInclude() {
+		RefFilter filter = filter(Arrays.asList("refs/heads/**"), Arrays.asList("refs/heads/tmp-*"));
+		assertTrue(filter.acceptsRef("refs/heads/master"));
+		assertFalse(filter.acceptsRef("refs/heads/tmp-build"));
+		assertFalse(filter.acceptsRef("refs/tags/v1.0"));
+	}
+
+	@Test
+	public void testEmptyRulesAreIgnored() {
+		RefFilter filter = filter(Arrays.asList(""), Arrays.asList(""));
+		assertTrue(filter.acceptsRef("refs/heads/master"));
+		assertTrue(filter.acceptsRef("refs/tags/v1.0"));
+	}
+
+	@Test
+	public void testRefKinds() {
+		RefFilter branches = new RefFilter(true, false, NONE, NONE, NONE, 0);
+		assertTrue(branches.acceptsRef("refs/heads/master"));
+		assertFalse(branches.acceptsRef("refs/tags/v1.0"));
+
+		RefFilter tags = new RefFilter(false, true, NONE, NONE, NONE, 0);
+		assertFalse(tags.acceptsRef("refs/heads/master"));
+		assertTrue(tags.acceptsRef("refs/tags/v1.0"));
+
+		// other refs are never posted
+		assertFalse(filter(Arrays.asList("refs/**"), NONE).acceptsRef("refs/tickets/00/1"));
+		assertFalse(filter(NONE, NONE).acceptsRef("refs/for/master"));
+	}
+
+	@Test
+	public void testPushers() {
+		RefFilter filter = new RefFilter(true, true, NONE, NONE, Arrays.asList("Jenkins", "mirror"), 0);
+		assertFalse(filter.acceptsPusher("jenkins"));
+		assertFalse(filter.acceptsPusher("MIRROR"));
+		assertTrue(filter.acceptsPusher("james"));
+		assertTrue(filter.acceptsPusher(null));
+	}
+
+	@Test
+	public void testMinCommits() {
+		RefFilter filter = new RefFilter(true, true, NONE, NONE, NONE, 2);
+		assertFalse(filter.acceptsCommits(1));
+		assertTrue(filter.acceptsCommits(2));
+	}
+}
@@ -0,0 +1,272 @@
+/*
+ * Copyright 2014 gitblit.com.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.gitblit.plugin.hipchat;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.eclipse.jgit.lib.CommitBuilder;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.FileMode;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.ObjectInserter;
+import org.eclipse.jgit.lib.PersonIdent;
+import org.eclipse.jgit.lib.Ref;
+import org.eclipse.jgit.lib.RefUpdate;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.lib.TreeFormatter;
+import org.eclipse.jgit.storage.file.FileRepositoryBuilder;
+import org.eclipse.jgit.transport.ReceiveCommand;
+
+import com.gitblit.IStoredSettings;
+import com.gitblit.manager.IGitblit;
+import com.gitblit.manager.IManager;
+import com.gitblit.models.RepositoryModel;
+import com.gitblit.models.UserModel;
+import com.gitblit.servlet.GitblitContext;
+
+/**
+ * A stand-in for a running Gitblit, which serves synthetic repositories and
+ * users to the hooks through {@link GitblitContext}.
+ *
+ * Every manager interface is answered by a single {@link IGitblit} proxy.
+ * Methods which the hooks do not need return null, false or 0.
+ *
+ * GitblitContext has no API to register managers, so {@link #install()}
+ * adds the proxy to its private managers list by reflection.  This depends
+ * on the internals of Gitblit 1.7 and must be revisited when Gitblit is
+ * upgraded: if GitblitContext stores or looks up its managers differently,
+ * the hooks will no longer see the proxy.
+ *
+ * @author James Moger
+ *
+ */
+public class SoakContext implements InvocationHandler {
+
+	final IStoredSettings settings;
+
+	final File baseFolder;
+
+	final IGitblit gitblit;
+
+	final Map<String, SyntheticRepository> repositories;
+
+	final Map<String, UserModel> users;
+
+	SoakContext(IStoredSettings settings, File baseFolder) {
+		this.settings = settings;
+		this.baseFolder = baseFolder;
+		this.repositories = new ConcurrentHashMap<String, SyntheticRepository>();
+		this.users = new ConcurrentHashMap<String, UserModel>();
+		this.gitblit = (IGitblit) Proxy.newProxyInstance(getClass().getClassLoader(),
+				new Class<?>[] { IGitblit.class }, this);
+	}
+
+	/**
+	 * Registers the proxy as the managers of a new {@link GitblitContext}.
+	 *
+	 * @return the proxy
+	 */
+	@SuppressWarnings("unchecked")
+	public IGitblit install() throws ReflectiveOperationException {
+		GitblitContext context = new GitblitContext(settings, baseFolder);
+		Field field = GitblitContext.class.getDeclaredField("managers");
+		field.setAccessible(true);
+		((List<IManager>) field.get(context)).add(gitblit);
+		return gitblit;
+	}
+
+	/**
+	 * Creates a bare repository with a linear history on master.
+	 *
+	 * @param name
+	 * @param commits the length of the history
+	 * @param files the number of files of each commit
+	 * @return the repository
+	 */
+	public SyntheticRepository createRepository(String name, int commits, int files) throws IOException {
+		File folder = new File(baseFolder, "git/" + name);
+		Repository db = new FileRepositoryBuilder().setGitDir(folder).setBare().build();
+		db.create(true);
+		SyntheticRepository repository = new SyntheticRepository(name, db, files);
+		repository.commit(Constants.R_HEADS + "master", commits, new Random(name.hashCode()));
+		repositories.put(name, repository);
+		return repository;
+	}
+
+	public UserModel getUser(String username) {
+		UserModel user = users.get(username);
+		if (user == null) {
+			user = new UserModel(username);
+			user.displayName = username.substring(0, 1).toUpperCase() + username.substring(1);
+			user.emailAddress = username + "@example.com";
+			users.put(username, user);
+		}
+		return user;
+	}
+
+	public void close() {
+		for (SyntheticRepository repository : repositories.values()) {
+			repository.db.close();
+		}
+	}
+
+	@Override
+	public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+		String name = method.getName();
+		int count = args == null ? 0 : args.length;
+		if ("getSettings".equals(name)) {
+			return settings;
+		} else if ("getBaseFolder".equals(name)) {
+			return baseFolder;
+		} else if ("getFileOrFolder".equals(name)) {
+			String path = count == 2 ? settings.getString((String) args[0], (String) args[1]) : (String) args[0];
+			path = path.replace("${baseFolder}", baseFolder.getAbsolutePath());
+			File file = new File(path);
+			return file.isAbsolute() ? file : new File(baseFolder, path);
+		} else if ("getHooksFolder".equals(name)) {
+			return new File(baseFolder, "groovy");
+		} else if ("getGrapesFolder".equals(name)) {
+			return new File(baseFolder, "groovy/grape");
+		} else if ("getRepositoryModel".equals(name) && count == 1) {
+			SyntheticRepository repository = repositories.get(args[0]);
+			return repository == null ? null : repository.model;
+		} else if ("getRepository".equals(name) && count == 1) {
+			SyntheticRepository repository = repositories.get(args[0]);
+			if (repository == null) {
+				return null;
+			}
+			// callers close the repository
+			repository.db.incrementOpen();
+			return repository.db;
+		} else if ("getUserModel".equals(name) && count == 1 && args[0] instanceof String) {
+			return getUser((String) args[0]);
+		} else if ("toString".equals(name)) {
+			return "SoakContext";
+		} else if ("hashCode".equals(name)) {
+			return System.identityHashCode(proxy);
+		} else if ("equals".equals(name)) {
+			return proxy == args[0];
+		}
+
+		Class<?> type = method.getReturnType();
+		if (type == boolean.class) {
+			return false;
+		} else if (type == int.class) {
+			return 0;
+		} else if (type == long.class) {
+			return 0L;
+		}
+		return null;
+	}
+
+	/**
+	 * A bare repository whose branches are advanced by synthetic commits.
+	 */
+	static class SyntheticRepository {
+
+		final String name;
+
+		final Repository db;
+
+		final RepositoryModel model;
+
+		final int files;
+
+		final Object lock;
+
+		int serial;
+
+		SyntheticRepository(String name, Repository db, int files) {
+			this.name = name;
+			this.db = db;
+			this.model = new RepositoryModel(name, "synthetic repository", "admin", new Date());
+			this.files = Math.max(1, files);
+			this.lock = new Object();
+		}
+
+		/**
+		 * Appends commits to a ref, creating the ref from master if it does
+		 * not exist.
+		 *
+		 * @param ref
+		 * @param commits
+		 * @param random
+		 * @return the command which a client would have pushed
+		 */
+		ReceiveCommand commit(String ref, int commits, Random random) throws IOException {
+			synchronized (lock) {
+				Ref current = db.exactRef(ref);
+				ObjectId oldId = current == null ? ObjectId.zeroId() : current.getObjectId();
+				ObjectId parent = oldId;
+				if (current == null) {
+					Ref master = db.exactRef(Constants.R_HEADS + "master");
+					parent = master == null ? null : master.getObjectId();
+				}
+
+				try (ObjectInserter inserter = db.newObjectInserter()) {
+					for (int i = 0; i < commits; i++) {
+						serial++;
+						TreeFormatter tree = new TreeFormatter();
+						for (int f = 0; f < files; f++) {
+							String content = String.format("file %d of %s, revision %d\n", f, name,
+									f == serial % files ? serial : 0);
+							ObjectId blob = inserter.insert(Constants.OBJ_BLOB, Constants.encode(content));
+							tree.append(String.format("file%05d.txt", f), FileMode.REGULAR_FILE, blob);
+						}
+						String author = "user" + random.nextInt(20);
+						PersonIdent ident = new PersonIdent(author, author + "@example.com");
+						CommitBuilder commit = new CommitBuilder();
+						commit.setTreeId(inserter.insert(tree));
+						if (parent != null) {
+							commit.setParentId(parent);
+						}
+						commit.setAuthor(ident);
+						commit.setCommitter(ident);
+						commit.setMessage(String.format("Change %d of %s\n\nSynthetic commit for the soak harness.\n",
+								serial, name));
+						parent = inserter.insert(commit);
+					}
+					inserter.flush();
+				}
+
+				RefUpdate update = db.updateRef(ref);
+				update.setNewObjectId(parent);
+				update.setExpectedOldObjectId(oldId);
+				update.setForceUpdate(true);
+				RefUpdate.Result result = update.update();
+				switch (result) {
+				case NEW:
+				case FAST_FORWARD:
+				case FORCED:
+					break;
+				default:
+					throw new IOException("Failed to update " + ref + " of " + name + ": " + result);
+				}
+				return new ReceiveCommand(oldId, parent, ref);
+			}
+		}
+	}
+}
@@ -0,0 +1,479 @@
+/*
+ * Copyright 2014 gitblit.com.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.gitblit.plugin.hipchat;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.lang.management.ThreadInfo;
+import java.lang.management.ThreadMXBean;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.transport.ReceiveCommand;
+import org.kohsuke.args4j.CmdLineException;
+import org.kohsuke.args4j.CmdLineParser;
+import org.kohsuke.args4j.Option;
+
+import com.gitblit.FileSettings;
+import com.gitblit.Keys;
+import com.gitblit.git.GitblitReceivePack;
+import com.gitblit.manager.IGitblit;
+import com.gitblit.models.TicketModel;
+import com.gitblit.models.TicketModel.Change;
+import com.gitblit.models.TicketModel.Field;
+import com.gitblit.models.TicketModel.Status;
+import com.gitblit.models.UserModel;
+import com.gitblit.plugin.hipchat.SoakContext.SyntheticRepository;
+
+/**
+ * Drives the receive and ticket hooks from many threads against a stub
+ * HipChat endpoint for a long period and reports throughput, latency
+ * percentiles, heap growth and thread counts, so that leaks and exhausted
+ * pools are caught before a release.
+ *
+ * The hooks run unmodified against synthetic repositories served by a
+ * {@link SoakContext}.  A push appends commits to a branch and calls
+ * {@link HipChatReceiveHook#onPostReceive}; a ticket event creates a ticket
+ * or adds a comment or status change and calls the ticket hook.
+ *
+ * @author James Moger
+ *
+ */
+public class SoakHarness {
+
+	@Option(name = "--duration", metaVar = "SECONDS", usage = "Duration of the soak")
+	long duration = 3600;
+
+	@Option(name = "--threads", aliases = { "-t" }, usage = "Number of threads firing events")
+	int threads = 16;
+
+	@Option(name = "--pause", metaVar = "MILLISECONDS", usage = "Pause of each thread between events")
+	int pause = 100;
+
+	@Option(name = "--repositories", aliases = { "-r" }, usage = "Number of synthetic repositories")
+	int repositories = 20;
+
+	@Option(name = "--history", metaVar = "COMMITS", usage = "Initial history of each repository")
+	int history = 100;
+
+	@Option(name = "--files", usage = "Number of files of each commit")
+	int files = 50;
+
+	@Option(name = "--push-commits", metaVar = "COMMITS", usage = "Maximum number of commits of a push")
+	int pushCommits = 10;
+
+	@Option(name = "--tickets", metaVar = "PERCENT", usage = "Share of ticket events")
+	int tickets = 30;
+
+	@Option(name = "--stub-latency", metaVar = "MILLISECONDS", usage = "Response latency of the stub endpoint")
+	int stubLatency = 50;
+
+	@Option(name = "--interval", metaVar = "SECONDS", usage = "Interval of the progress reports")
+	int interval = 60;
+
+	@Option(name = "--settings", metaVar = "FILE", usage = "Additional gitblit.properties settings")
+	String extraSettings;
+
+	@Option(name = "--folder", metaVar = "FOLDER", usage = "Work folder, a temporary folder by default")
+	String folder;
+
+	final AtomicLong pushes = new AtomicLong();
+
+	final AtomicLong ticketEvents = new AtomicLong();
+
+	final AtomicLong errors = new AtomicLong();
+
+	final AtomicLong ticketNumbers = new AtomicLong();
+
+	final SoakListener listener = new SoakListener();
+
+	public static void main(String... args) {
+		SoakHarness harness = new SoakHarness();
+		CmdLineParser parser = new CmdLineParser(harness);
+		try {
+			parser.parseArgument(args);
+		} catch (CmdLineException e) {
+			System.err.println(e.getMessage());
+			parser.printUsage(System.err);
+			System.exit(1);
+		}
+		try {
+			System.exit(harness.run());
+		} catch (Exception e) {
+			e.printStackTrace();
+			System.exit(2);
+		}
+	}
+
+	/**
+	 * Runs the soak.
+	 *
+	 * @return 0 if every notification was delivered
+	 */
+	public int run() throws Exception {
+		File baseFolder = folder == null ? Files.createTempDirectory("hipchat-soak").toFile() : new File(folder);
+		baseFolder.mkdirs();
+
+		StubEndpoint endpoint = new StubEndpoint(stubLatency);
+		final SoakContext context = new SoakContext(
+				new FileSettings(writeSettings(baseFolder, endpoint).getAbsolutePath()), baseFolder);
+		IGitblit gitblit = context.install();
+
+		System.out.println(String.format("Creating %d repositories with %d commits of %d files in %s",
+				repositories, history, files, baseFolder));
+		final List<SyntheticRepository> list = new ArrayList<SyntheticRepository>();
+		for (int i = 0; i < repositories; i++) {
+			list.add(context.createRepository(String.format("project%d/repository%02d.git", i % 4, i), history, files));
+		}
+
+		HipChatter.init(gitblit);
+		HipChatter hipChatter = HipChatter.instance().start();
+		hipChatter.addListener(listener);
+
+		final HipChatReceiveHook receiveHook = new HipChatReceiveHook();
+		final HipChatTicketHook ticketHook = new HipChatTicketHook() {
+			@Override
+			protected String getUrl(TicketModel ticket) {
+				// the ticket service is not part of the soak
+				return String.format("http://localhost/tickets?r=%s&h=%s", ticket.repository, ticket.number);
+			}
+		};
+
+		final long start = System.nanoTime();
+		final long end = start + TimeUnit.SECONDS.toNanos(duration);
+		List<Thread> workers = new ArrayList<Thread>();
+		for (int i = 0; i < threads; i++) {
+			final int id = i;
+			Thread worker = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					fire(id, context, list, receiveHook, ticketHook, end);
+				}
+			}, "soak-" + i);
+			worker.start();
+			workers.add(worker);
+		}
+
+		Sample first = new Sample(start);
+		System.out.println(Sample.HEADER);
+		System.out.println(first.format(null, 0));
+		Sample previous = first;
+		long next = start;
+		while (System.nanoTime() < end) {
+			next += TimeUnit.SECONDS.toNanos(interval);
+			long wait = Math.min(next, end) - System.nanoTime();
+			if (wait > 0) {
+				TimeUnit.NANOSECONDS.sleep(wait);
+			}
+			Sample sample = new Sample(start);
+			System.out.println(sample.format(previous, hipChatter.getQueue().size()));
+			previous = sample;
+		}
+		for (Thread worker : workers) {
+			worker.join();
+		}
+
+		// let the pipeline drain before the final sample
+		long drain = System.nanoTime() + TimeUnit.SECONDS.toNanos(60);
+		while ((hipChatter.getQueue().size() > 0 || hipChatter.getMetrics().getInFlight() > 0)
+				&& System.nanoTime() < drain) {
+			Thread.sleep(100);
+		}
+		Sample last = new Sample(start);
+		System.out.println(last.format(previous, hipChatter.getQueue().size()));
+
+		hipChatter.removeListener(listener);
+		hipChatter.stop();
+		endpoint.close();
+		context.close();
+
+		System.out.println();
+		System.out.println(String.format("events: %d pushes, %d ticket events, %d errors",
+				pushes.get(), ticketEvents.get(), errors.get()));
+		System.out.println(String.format("notifications: %d submitted, %d delivered, %d failed, %d received by the stub",
+				hipChatter.getMetrics().getSubmitted(), listener.delivered.get(), listener.failed.get(),
+				endpoint.getRequests()));
+		System.out.println(String.format("latency (ms): %s", listener.percentiles(listener.all)));
+		System.out.println(String.format("heap growth: %.1f MB, thread growth: %d (peak %d)",
+				(last.heap - first.heap) / 1e6, last.threads - first.threads, last.peakThreads));
+		System.out.println("threads by name: " + last.pools);
+		return listener.failed.get() == 0 && errors.get() == 0 ? 0 : 1;
+	}
+
+	protected File writeSettings(File baseFolder, StubEndpoint endpoint) throws IOException {
+		Properties properties = new Properties();
+		if (extraSettings != null) {
+			try (InputStream in = new FileInputStream(extraSettings)) {
+				properties.load(in);
+			}
+		}
+		properties.setProperty(Plugin.SETTING_API_URL, endpoint.getUrl());
+		properties.setProperty(Plugin.SETTING_DEFAULT_ROOM, "soak");
+		properties.setProperty(Plugin.SETTING_DEFAULT_TOKEN, "soak");
+		properties.setProperty(Plugin.SETTING_VALIDATE_TOKENS, "false");
+		if (!properties.containsKey(Keys.web.canonicalUrl)) {
+			properties.setProperty(Keys.web.canonicalUrl, "http://localhost");
+		}
+		File file = new File(baseFolder, "gitblit.properties");
+		try (OutputStream out = new FileOutputStream(file)) {
+			properties.store(out, "HipChat soak harness");
+		}
+		return file;
+	}
+
+	/**
+	 * Fires events until the end of the soak.
+	 */
+	protected void fire(int id, SoakContext context, List<SyntheticRepository> list, HipChatReceiveHook receiveHook,
+			HipChatTicketHook ticketHook, long end) {
+		Random random = new Random(id);
+		// each thread works on its own tickets
+		Map<String, List<TicketModel>> open = new HashMap<String, List<TicketModel>>();
+		while (System.nanoTime() < end) {
+			SyntheticRepository repository = list.get(random.nextInt(list.size()));
+			UserModel user = context.getUser("user" + random.nextInt(20));
+			try {
+				if (random.nextInt(100) < tickets) {
+					fireTicket(random, repository, user, open, ticketHook);
+					ticketEvents.incrementAndGet();
+				} else {
+					firePush(random, id, context.gitblit, repository, user, receiveHook);
+					pushes.incrementAndGet();
+				}
+			} catch (Exception e) {
+				if (errors.incrementAndGet() <= 10) {
+					e.printStackTrace();
+				}
+			}
+			if (pause > 0) {
+				try {
+					Thread.sleep(pause);
+				} catch (InterruptedException e) {
+					return;
+				}
+			}
+		}
+	}
+
+	protected void firePush(Random random, int id, IGitblit gitblit, SyntheticRepository repository,
+			UserModel user, HipChatReceiveHook receiveHook) throws IOException {
+		String ref;
+		int roll = random.nextInt(100);
+		if (roll < 5) {
+			ref = Constants.R_TAGS + "v" + System.nanoTime();
+		} else if (roll < 40) {
+			ref = Constants.R_HEADS + "feature-" + id + "-" + random.nextInt(5);
+		} else {
+			ref = Constants.R_HEADS + "master";
+		}
+		int commits = ref.startsWith(Constants.R_TAGS) ? 1 : 1 + random.nextInt(Math.max(1, pushCommits));
+		ReceiveCommand cmd = repository.commit(ref, commits, random);
+
+		GitblitReceivePack receivePack = new GitblitReceivePack(gitblit, repository.db, repository.model, user);
+		try {
+			receiveHook.onPostReceive(receivePack, Arrays.asList(cmd));
+		} finally {
+			receivePack.getRevWalk().close();
+		}
+	}
+
+	protected void fireTicket(Random random, SyntheticRepository repository, UserModel user,
+			Map<String, List<TicketModel>> open, HipChatTicketHook ticketHook) {
+		List<TicketModel> list = open.get(repository.name);
+		if (list == null) {
+			list = new ArrayList<TicketModel>();
+			open.put(repository.name, list);
+		}
+
+		// keep the harness state bounded, so heap growth is the plugin's
+		if (list.isEmpty() || random.nextInt(10) == 0) {
+			Change change = new Change(user.username);
+			change.setField(Field.title, "Synthetic ticket " + ticketEvents.get());
+			change.setField(Field.body, EventReplayer.markdown(random.nextInt(2000)));
+			change.setField(Field.type, TicketModel.Type.Bug);
+			change.setField(Field.status, Status.New);
+			TicketModel ticket = TicketModel.buildTicket(Arrays.asList(change));
+			ticket.repository = repository.name;
+			ticket.number = ticketNumbers.incrementAndGet();
+			if (list.size() >= 20) {
+				list.remove(0);
+			}
+			list.add(ticket);
+			ticketHook.onNewTicket(ticket);
+			return;
+		}
+
+		TicketModel ticket = list.get(random.nextInt(list.size()));
+		Change change = new Change(user.username);
+		if (random.nextInt(5) == 0) {
+			change.setField(Field.status, random.nextBoolean() ? Status.Open : Status.Resolved);
+		} else {
+			change.comment(String.format("Comment %d\n\n%s", ticketEvents.get(),
+					EventReplayer.markdown(random.nextInt(1000))));
+		}
+		ticket.applyChange(change);
+		if (ticket.changes.size() > 50) {
+			list.remove(ticket);
+		}
+		ticketHook.onUpdateTicket(ticket, change);
+	}
+
+	/**
+	 * A snapshot of the delivered notifications, heap and threads.
+	 */
+	class Sample {
+
+		static final String HEADER = "elapsed(s)  pushes  tickets  delivered  failed  msg/s  p50(ms)  p95(ms)  p99(ms)  max(ms)  queued  heap(MB)  threads";
+
+		final long elapsed;
+
+		final long pushes;
+
+		final long tickets;
+
+		final long delivered;
+
+		final long failed;
+
+		final long [] latencies;
+
+		final long heap;
+
+		final int threads;
+
+		final int peakThreads;
+
+		final String pools;
+
+		Sample(long start) {
+			this.elapsed = System.nanoTime() - start;
+			this.pushes = SoakHarness.this.pushes.get();
+			this.tickets = ticketEvents.get();
+			this.delivered = listener.delivered.get();
+			this.failed = listener.failed.get();
+			this.latencies = listener.drain();
+
+			// heap after a collection, so growth means retained objects
+			MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+			memory.gc();
+			this.heap = memory.getHeapMemoryUsage().getUsed();
+
+			ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+			this.threads = threadBean.getThreadCount();
+			this.peakThreads = threadBean.getPeakThreadCount();
+			Map<String, Integer> names = new TreeMap<String, Integer>();
+			for (ThreadInfo info : threadBean.getThreadInfo(threadBean.getAllThreadIds())) {
+				if (info == null) {
+					continue;
+				}
+				// group pool threads by the name of the pool
+				String name = info.getThreadName().replaceAll("[-#]?\\d+$", "");
+				Integer count = names.get(name);
+				names.put(name, count == null ? 1 : count + 1);
+			}
+			this.pools = names.toString();
+		}
+
+		String format(Sample previous, int queued) {
+			long [] p = SoakListener.percentiles(latencies, 50, 95, 99, 100);
+			double seconds = previous == null ? 0 : (elapsed - previous.elapsed) / 1e9;
+			double rate = seconds == 0 ? 0 : (delivered - previous.delivered) / seconds;
+			return String.format("%10.0f  %6d  %7d  %9d  %6d  %5.1f  %7d  %7d  %7d  %7d  %6d  %8.1f  %7d",
+					elapsed / 1e9, pushes, tickets, delivered, failed, rate, p[0], p[1], p[2], p[3], queued,
+					heap / 1e6, threads);
+		}
+	}
+
+	/**
+	 * Measures the latency of every delivered notification from the creation
+	 * of its payload in the hook.
+	 */
+	static class SoakListener implements DeliveryCallback {
+
+		final AtomicLong delivered = new AtomicLong();
+
+		final AtomicLong failed = new AtomicLong();
+
+		final List<Long> all = new ArrayList<Long>();
+
+		List<Long> current = new ArrayList<Long>();
+
+		@Override
+		public void completed(Delivery delivery, long elapsed) {
+			long latency = System.currentTimeMillis() - delivery.getPayload().getCreated();
+			delivered.incrementAndGet();
+			synchronized (this) {
+				current.add(latency);
+			}
+		}
+
+		@Override
+		public void failed(Delivery delivery, Exception cause, long elapsed) {
+			failed.incrementAndGet();
+		}
+
+		/**
+		 * Returns the sorted latencies since the last call.
+		 */
+		synchronized long [] drain() {
+			long [] sorted = new long[current.size()];
+			for (int i = 0; i < sorted.length; i++) {
+				sorted[i] = current.get(i);
+			}
+			Arrays.sort(sorted);
+			// keep a bounded sample of the whole soak for the summary
+			for (int i = 0; i < sorted.length && all.size() < 1000000; i++) {
+				all.add(sorted[i]);
+			}
+			current = new ArrayList<Long>();
+			return sorted;
+		}
+
+		synchronized String percentiles(List<Long> values) {
+			long [] sorted = new long[values.size()];
+			for (int i = 0; i < sorted.length; i++) {
+				sorted[i] = values.get(i);
+			}
+			Arrays.sort(sorted);
+			long [] p = percentiles(sorted, 50, 95, 99, 100);
+			return String.format("p50 %d, p95 %d, p99 %d, max %d", p[0], p[1], p[2], p[3]);
+		}
+
+		static long [] percentiles(long [] sorted, int... percentiles) {
+			long [] values = new long[percentiles.length];
+			for (int i = 0; i < percentiles.length; i++) {
+				values[i] = LatencyProbe.percentile(sorted, percentiles[i]);
+			}
+			return values;
+		}
+	}
+}
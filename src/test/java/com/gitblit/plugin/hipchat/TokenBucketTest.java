@@ -0,0 +1,88 @@
+/*
+ * Copyright 2014 gitblit.com.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.gitblit.plugin.hipchat;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+/**
+ * Tests the burst capacity, refill and refunds of the token bucket.
+ *
+ * @author James Moger
+ *
+ */
+public class TokenBucketTest {
+
+	@Test
+	public void testBurst() {
+		TokenBucket bucket = new TokenBucket(3, 0);
+		assertTrue(bucket.isFull());
+		for (int i = 0; i < 3; i++) {
+			assertTrue(bucket.tryAcquire());
+		}
+		assertFalse(bucket.tryAcquire());
+		assertFalse(bucket.isFull());
+	}
+
+	@Test
+	public void testRefill() throws InterruptedException {
+		// one token per second
+		TokenBucket bucket = new TokenBucket(2, 3600);
+		assertTrue(bucket.tryAcquire());
+		assertTrue(bucket.tryAcquire());
+		assertFalse(bucket.tryAcquire());
+
+		Thread.sleep(1100);
+		assertTrue(bucket.tryAcquire());
+		assertFalse(bucket.tryAcquire());
+	}
+
+	@Test
+	public void testRefillIsCapped() throws InterruptedException {
+		// one token per 50 milliseconds
+		TokenBucket bucket = new TokenBucket(2, 72000);
+		assertTrue(bucket.tryAcquire());
+		Thread.sleep(500);
+		assertTrue(bucket.isFull());
+		assertTrue(bucket.tryAcquire());
+		assertTrue(bucket.tryAcquire());
+		assertFalse(bucket.tryAcquire());
+	}
+
+	@Test
+	public void testRefund() {
+		TokenBucket bucket = new TokenBucket(1, 0);
+		assertTrue(bucket.tryAcquire());
+		assertFalse(bucket.tryAcquire());
+		bucket.refund();
+		assertTrue(bucket.tryAcquire());
+
+		// refunds never exceed the capacity
+		bucket.refund();
+		bucket.refund();
+		assertTrue(bucket.tryAcquire());
+		assertFalse(bucket.tryAcquire());
+	}
+
+	@Test
+	public void testCapacityIsAtLeastOne() {
+		TokenBucket bucket = new TokenBucket(0, 0);
+		assertTrue(bucket.tryAcquire());
+		assertFalse(bucket.tryAcquire());
+	}
+}